@@ -0,0 +1,109 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileBlockAnswerMessage;
+import com.isctorrent.logic.messages.FileBlockRequestMessage;
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.Config;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Block bookkeeping of a download, without any I/O: every block handed out
+// by the scheduler, tracked in a peer's request window and completed
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockSchedulerBenchmark {
+
+  private static final String HASH =
+    "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  @Param({ "1024", "16384" })
+  private int blocks;
+
+  @Param({ "1", "4", "16" })
+  private int peers;
+
+  private List<FileBlockRequestMessage> requests;
+  private List<FileBlockAnswerMessage> answers;
+  private List<NodeId> peerIds;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    requests = new ArrayList<>();
+    answers = new ArrayList<>();
+    for (int i = 0; i < blocks; i++) {
+      long offset = (long) i * BLOCK_SIZE;
+      requests.add(new FileBlockRequestMessage(HASH, offset, BLOCK_SIZE, i));
+      // The answers share no data, only their header is looked at
+      answers.add(
+        new FileBlockAnswerMessage(HASH, offset, BLOCK_SIZE, i, null)
+      );
+    }
+    peerIds = new ArrayList<>();
+    for (int i = 0; i < peers; i++) {
+      peerIds.add(new NodeId("localhost", 9000 + i));
+    }
+  }
+
+  // Peers take turns filling their window and completing its oldest block
+  @Benchmark
+  public int download() {
+    Map<NodeId, PeerStats> peerStats = new LinkedHashMap<>();
+    Map<NodeId, RequestWindow> windows = new HashMap<>();
+    Map<NodeId, Deque<FileBlockRequestMessage>> inFlight = new HashMap<>();
+    for (NodeId peerId : peerIds) {
+      PeerStats stats = new PeerStats();
+      stats.started();
+      peerStats.put(peerId, stats);
+      windows.put(
+        peerId,
+        new RequestWindow(
+          Config.PIPELINE_WINDOW_SIZE,
+          Config.PIPELINE_MIN_WINDOW_SIZE,
+          Config.PIPELINE_MAX_WINDOW_SIZE
+        )
+      );
+      inFlight.put(peerId, new ArrayDeque<>());
+    }
+    BlockScheduler scheduler = new BlockScheduler(
+      requests,
+      peerStats,
+      Config.ENDGAME_THRESHOLD,
+      request -> {}
+    );
+    int completed = 0;
+    while (completed < blocks) {
+      for (NodeId peerId : peerIds) {
+        RequestWindow window = windows.get(peerId);
+        Deque<FileBlockRequestMessage> sent = inFlight.get(peerId);
+        FileBlockRequestMessage request;
+        while (
+          window.hasCapacity() && (request = scheduler.poll(peerId)) != null
+        ) {
+          window.add(request);
+          scheduler.sent(request, peerId, new CompletableFuture<>());
+          sent.addLast(request);
+        }
+        if (sent.isEmpty()) continue;
+        FileBlockRequestMessage oldest = sent.pollFirst();
+        FileBlockRequestMessage answered = window.complete(
+          answers.get(oldest.getIndex())
+        );
+        if (answered == null) continue;
+        if (scheduler.complete(answered, peerId)) {
+          peerStats
+            .get(peerId)
+            .blockReceived(BLOCK_SIZE, window.getSmoothedRttMillis());
+          completed++;
+        }
+      }
+    }
+    return completed;
+  }
+}
@@ -0,0 +1,63 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileMetadata;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Keyword searches over the name index behind
+// WorkFolder.searchFilesByKeyword. The names are synthetic, so no files are
+// created or hashed.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+  private static final String[] WORDS = {
+    "holiday",
+    "report",
+    "backup",
+    "music",
+    "lecture",
+    "invoice",
+    "photo",
+    "dataset",
+  };
+  private static final String[] EXTENSIONS = { ".mp4", ".pdf", ".zip", ".jpg" };
+
+  @Param({ "10000", "100000", "1000000" })
+  private int files;
+
+  // One match, an eighth of the files, and a query shorter than a trigram
+  @Param({ "report_004242", "holiday", "mp" })
+  private String keyword;
+
+  private FileNameIndex index;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    index = new FileNameIndex();
+    List<byte[]> noBlockHashes = Collections.emptyList();
+    for (int i = 0; i < files; i++) {
+      String name =
+        WORDS[i % WORDS.length] +
+        "_" +
+        String.format("%06d", i) +
+        EXTENSIONS[i % EXTENSIONS.length];
+      String hash = String.format("%064x", i);
+      index.put(
+        new FileMetadata(new File(name), i, 0, hash, hash, noBlockHashes)
+      );
+    }
+  }
+
+  @Benchmark
+  public List<FileMetadata> search() {
+    return index.search(keyword);
+  }
+}
@@ -0,0 +1,154 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import com.isctorrent.logic.models.NodeId;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Frame round-trips of every message type, as written and read by
+// Connection, in both payload encodings
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireProtocolBenchmark {
+
+  private static final String HASH =
+    "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+  @Param(
+    {
+      "NEW_CONNECTION_REQUEST",
+      "NEW_CONNECTION_REQUEST_ACK",
+      "WORD_SEARCH",
+      "FILE_SEARCH_RESULTS",
+      "FILE_BLOCK_REQUEST",
+      "FILE_BLOCK_ANSWER",
+      "BLOCK_HASHES_REQUEST",
+      "BLOCK_HASHES_ANSWER",
+    }
+  )
+  private String messageType;
+
+  @Param({ "1", "2" })
+  private int version;
+
+  // Of the block answer
+  @Param({ "65536" })
+  private int blockSize;
+
+  private Object message;
+  private byte type;
+  private byte[] payload;
+  private byte[] frame;
+  private ByteArrayOutputStream frameBytes;
+
+  @Setup
+  public void setup() throws IOException {
+    message = createMessage();
+    type = MessageCodec.typeOf(message);
+    payload = WireProtocol.encodePayload(version, message);
+    frameBytes = new ByteArrayOutputStream(payload.length + 64);
+    DataOutputStream out = new DataOutputStream(frameBytes);
+    WireProtocol.writeFrame(out, version, 1, message);
+    out.flush();
+    frame = frameBytes.toByteArray();
+  }
+
+  private Object createMessage() {
+    Random random = new Random(42);
+    WordSearchMessage search = new WordSearchMessage(
+      "holiday",
+      "localhost",
+      8080
+    );
+    switch (messageType) {
+      case "NEW_CONNECTION_REQUEST":
+        return new NewConnectionRequest(
+          "localhost",
+          8080,
+          WireProtocol.MAX_VERSION,
+          true,
+          true
+        );
+      case "NEW_CONNECTION_REQUEST_ACK":
+        return new NewConnectionRequestAck(
+          new NodeId("localhost", 8081),
+          WireProtocol.MAX_VERSION,
+          true
+        );
+      case "WORD_SEARCH":
+        return search;
+      case "FILE_SEARCH_RESULTS":
+        List<FileSearchResult> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+          results.add(
+            new FileSearchResult(
+              search,
+              "holiday_" + i + ".mp4",
+              1L << 30,
+              HASH,
+              HASH,
+              1 << 20,
+              "localhost",
+              8081
+            )
+          );
+        }
+        return results;
+      case "FILE_BLOCK_REQUEST":
+        return new FileBlockRequestMessage(HASH, 0, blockSize, 0);
+      case "FILE_BLOCK_ANSWER":
+        byte[] data = new byte[blockSize];
+        random.nextBytes(data);
+        return new FileBlockAnswerMessage(HASH, 0, blockSize, 0, data);
+      case "BLOCK_HASHES_REQUEST":
+        return new BlockHashesRequestMessage(HASH);
+      case "BLOCK_HASHES_ANSWER":
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 1024; i++) {
+          byte[] hash = new byte[32];
+          random.nextBytes(hash);
+          hashes.add(hash);
+        }
+        return new BlockHashesAnswerMessage(HASH, hashes);
+      default:
+        throw new IllegalArgumentException(messageType);
+    }
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return WireProtocol.encodePayload(version, message);
+  }
+
+  @Benchmark
+  public Object decode() throws IOException {
+    return WireProtocol.decodePayload(version, type, payload);
+  }
+
+  @Benchmark
+  public Object roundTrip() throws IOException {
+    frameBytes.reset();
+    DataOutputStream out = new DataOutputStream(frameBytes);
+    WireProtocol.writeFrame(out, version, 1, message);
+    out.flush();
+    DataInputStream in = new DataInputStream(
+      new ByteArrayInputStream(frameBytes.toByteArray())
+    );
+    return WireProtocol.readFrame(in).getPayload();
+  }
+
+  @Benchmark
+  public Object readFrame() throws IOException {
+    return WireProtocol
+      .readFrame(new DataInputStream(new ByteArrayInputStream(frame)))
+      .getPayload();
+  }
+}
@@ -0,0 +1,93 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileBlockRequestMessage;
+import com.isctorrent.logic.models.FileBlock;
+import com.isctorrent.logic.models.FileMetadata;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+// Random block reads from many upload threads at once. The small file fits
+// in the block cache, the large one mostly misses it. Pass
+// -jvmArgsAppend -Disctorrent.mmapReads=true to measure the mmap path.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class WorkFolderBenchmark {
+
+  private static final String FILE_NAME = "shared.bin";
+
+  @Param({ "16777216", "268435456" })
+  private long fileSize;
+
+  private Path folder;
+  private WorkFolder workFolder;
+  private String hash;
+  private int blockSize;
+  private int blockCount;
+
+  @State(Scope.Thread)
+  public static class Reader {
+
+    private final SplittableRandom random = new SplittableRandom();
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, InterruptedException {
+    folder = Files.createTempDirectory("isctorrent-bench");
+    try (
+      RandomAccessFile file = new RandomAccessFile(
+        folder.resolve(FILE_NAME).toFile(),
+        "rw"
+      )
+    ) {
+      byte[] chunk = new byte[1 << 20];
+      new SplittableRandom(42).nextBytes(chunk);
+      for (long written = 0; written < fileSize; written += chunk.length) {
+        file.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+      }
+    }
+    workFolder = new WorkFolder(folder.toString());
+    workFolder.getIndexer().awaitIdle();
+    FileMetadata fileMetadata = workFolder
+      .searchFilesByKeyword(FILE_NAME)
+      .get(0);
+    hash = fileMetadata.getFileHash();
+    blockSize = fileMetadata.getBlockSize();
+    blockCount = (int) ((fileSize + blockSize - 1) / blockSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(folder)) {
+      paths
+        .sorted(Comparator.reverseOrder())
+        .forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public FileBlock getFileBlock(Reader reader) {
+    int index = reader.random.nextInt(blockCount);
+    FileBlock block = workFolder.getFileBlock(
+      new FileBlockRequestMessage(
+        hash,
+        (long) index * blockSize,
+        blockSize,
+        index
+      )
+    );
+    workFolder.releaseFileBlock(hash);
+    return block;
+  }
+}
@@ -0,0 +1,48 @@
+package com.isctorrent.logic.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Hashing a file as the indexer does: the whole-file hash and the block
+// hashes in one pass. The block size grows with the file size, from 64 KB
+// for the smaller files to 256 KB for the largest one here.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileMetadataBenchmark {
+
+  @Param({ "1048576", "67108864", "268435456" })
+  private long fileSize;
+
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    file = Files.createTempFile("isctorrent-bench", ".bin").toFile();
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      byte[] chunk = new byte[1 << 20];
+      new SplittableRandom(42).nextBytes(chunk);
+      for (long written = 0; written < fileSize; written += chunk.length) {
+        out.write(chunk, 0, (int) Math.min(chunk.length, fileSize - written));
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public FileMetadata hashFile() {
+    return new FileMetadata(file);
+  }
+}
@@ -1,13 +1,22 @@
 package com.isctorrent.gui;
 
+import com.isctorrent.logic.FileIndexer;
 import com.isctorrent.logic.Node;
+import com.isctorrent.logic.SearchHandle;
+import com.isctorrent.logic.SearchListener;
+import com.isctorrent.logic.ServerEngine;
 import com.isctorrent.logic.WorkFolder;
 import com.isctorrent.logic.messages.FileSearchResult;
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.Config;
 import java.awt.*;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.*;
 
 public class MainWindow {
@@ -17,7 +26,9 @@ public class MainWindow {
 
   public static void main(String[] args) {
     if (args.length < 2) {
-      System.out.println("[ERROR] Usage: java IscTorrent <port> <folder>");
+      System.out.println(
+        "[ERROR] Usage: java IscTorrent <port> <folder> [blocking|nio]"
+      );
       System.exit(1);
     }
     int port;
@@ -39,10 +50,22 @@ public class MainWindow {
       System.exit(1);
     }
 
+    ServerEngine serverEngine = ServerEngine.BLOCKING;
+    if (args.length > 2) {
+      try {
+        serverEngine = ServerEngine.valueOf(args[2].toUpperCase());
+      } catch (IllegalArgumentException e) {
+        System.out.println("[ERROR] Server engine must be blocking or nio.");
+        System.exit(1);
+      }
+    }
+
     WorkFolder workFolder = new WorkFolder(folderPath);
     Node thisNode = new Node("localhost", port);
     thisNode.setWorkfolder(workFolder);
+    thisNode.setServerEngine(serverEngine);
     thisNode.startServerAsync();
+    thisNode.exportMetrics();
 
     JFrame frame = new JFrame(
       "[address=localhost" +
@@ -54,6 +77,17 @@ public class MainWindow {
       "]"
     );
     frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    // Shows hashing progress while new files are being indexed
+    String title = frame.getTitle();
+    FileIndexer indexer = workFolder.getIndexer();
+    new Timer(
+      1000,
+      e ->
+        frame.setTitle(
+          indexer.isIdle() ? title : title + " | [" + indexer + "]"
+        )
+    )
+      .start();
     frame.setSize(GUI_WIDTH, GUI_HEIGHT);
 
     frame.setLayout(new BorderLayout());
@@ -68,24 +102,45 @@ public class MainWindow {
     JButton searchButton = new JButton("Procurar");
     searchButton.setPreferredSize(new Dimension(180, 30));
     DefaultListModel<String> model = new DefaultListModel<>();
-    // fileName.txt <2> : [FileSearchResult_Node_1, FileSearchResult_Node_2]
+    // fileHash: [FileSearchResult_Node_1, FileSearchResult_Node_2], shown as
+    // fileName.txt <2> at the same index as its hash in resultHashes
     Map<String, List<FileSearchResult>> resultsMap = new HashMap<>();
+    List<String> resultHashes = new ArrayList<>();
+    AtomicReference<SearchHandle> currentSearch = new AtomicReference<>();
+    AtomicInteger searchGeneration = new AtomicInteger();
     searchButton.addActionListener(e -> {
+      SearchHandle previousSearch = currentSearch.get();
+      if (previousSearch != null) previousSearch.cancel();
       model.clear();
       resultsMap.clear();
+      resultHashes.clear();
+      // Updates still queued from a previous search are dropped
+      int generation = searchGeneration.incrementAndGet();
       String word = searchField.getText();
-      Map<String, List<FileSearchResult>> resultsByFileHash = thisNode.searchWord(
-        word
+      SearchHandle search = thisNode.searchWordAsync(
+        word,
+        Config.SEARCH_PEER_TIMEOUT,
+        Config.SEARCH_DEADLINE,
+        new SearchListener() {
+          @Override
+          public void resultsReceived(
+            NodeId peer,
+            List<FileSearchResult> results
+          ) {
+            SwingUtilities.invokeLater(() -> {
+              if (searchGeneration.get() != generation) return;
+              addResults(model, resultsMap, resultHashes, results);
+            });
+          }
+
+          @Override
+          public void peerFailed(NodeId peer) {}
+
+          @Override
+          public void searchFinished() {}
+        }
       );
-      for (Map.Entry<String, List<FileSearchResult>> entry : resultsByFileHash.entrySet()) {
-        // fileHash: [FileSearchResult, ...]
-        List<FileSearchResult> fileResults = entry.getValue();
-        String fileName = fileResults.get(0).getFileName();
-        int count = fileResults.size();
-        String displayName = fileName + " <" + count + ">";
-        model.addElement(displayName);
-        resultsMap.put(displayName, fileResults);
-      }
+      currentSearch.set(search);
     });
     searchPanel.add(searchButton, BorderLayout.EAST);
     frame.add(searchPanel, BorderLayout.NORTH);
@@ -107,9 +162,10 @@ public class MainWindow {
     JButton downloadButton = new JButton("Download");
     downloadButton.setPreferredSize(new Dimension(150, 100));
     downloadButton.addActionListener(e -> {
-      List<String> values = resultsList.getSelectedValuesList();
-      for (String value : values) {
-        List<FileSearchResult> results = resultsMap.get(value);
+      for (int index : resultsList.getSelectedIndices()) {
+        List<FileSearchResult> results = resultsMap.get(
+          resultHashes.get(index)
+        );
         if (results != null && !results.isEmpty()) {
           String fileName = results.get(0).getFileName();
           thisNode.downloadAsync(fileName, results);
@@ -128,8 +184,38 @@ public class MainWindow {
     gbc.gridy = 1;
     buttonsPanel.add(addNodeButton, gbc);
     addNodeButton.addActionListener(e -> AddNodeWindow.open(thisNode));
+
+    // Rate limits
+    JButton rateLimitButton = new JButton("Rate Limits");
+    rateLimitButton.setPreferredSize(new Dimension(150, 100));
+    gbc.gridy = 2;
+    buttonsPanel.add(rateLimitButton, gbc);
+    rateLimitButton.addActionListener(e -> RateLimitWindow.open(thisNode));
     frame.add(buttonsPanel, BorderLayout.EAST);
 
     frame.setVisible(true);
   }
+
+  // Files already listed get their provider count updated in place
+  private static void addResults(
+    DefaultListModel<String> model,
+    Map<String, List<FileSearchResult>> resultsMap,
+    List<String> resultHashes,
+    List<FileSearchResult> results
+  ) {
+    for (FileSearchResult result : results) {
+      String fileHash = result.getFileHash();
+      List<FileSearchResult> fileResults = resultsMap.get(fileHash);
+      if (fileResults == null) {
+        fileResults = new ArrayList<>();
+        resultsMap.put(fileHash, fileResults);
+        resultHashes.add(fileHash);
+        model.addElement("");
+      }
+      fileResults.add(result);
+      String displayName =
+        result.getFileName() + " <" + fileResults.size() + ">";
+      model.set(resultHashes.indexOf(fileHash), displayName);
+    }
+  }
 }
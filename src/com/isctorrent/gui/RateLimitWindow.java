@@ -0,0 +1,80 @@
+package com.isctorrent.gui;
+
+import com.isctorrent.logic.BandwidthLimiter;
+import com.isctorrent.logic.Node;
+
+import java.awt.*;
+
+import javax.swing.*;
+
+public class RateLimitWindow {
+
+  private static final String[] LABELS = {
+    "Upload (KB/s):",
+    "Download (KB/s):",
+    "Upload per peer (KB/s):",
+    "Download per peer (KB/s):",
+  };
+
+  public static void open(Node thisNode) {
+    BandwidthLimiter limiter = thisNode.getBandwidthLimiter();
+    JFrame limitsFrame = new JFrame("Rate Limits (0 = unlimited)");
+    limitsFrame.setSize(350, 280);
+    limitsFrame.setLayout(new GridBagLayout());
+    GridBagConstraints gbc = new GridBagConstraints();
+    gbc.insets = new Insets(5, 10, 5, 10);
+
+    long[] limits = {
+      limiter.getUploadLimit(),
+      limiter.getDownloadLimit(),
+      limiter.getPeerUploadLimit(),
+      limiter.getPeerDownloadLimit(),
+    };
+    JTextField[] fields = new JTextField[LABELS.length];
+    for (int i = 0; i < LABELS.length; i++) {
+      fields[i] = new JTextField(String.valueOf(limits[i] / 1024), 8);
+      gbc.gridx = 0;
+      gbc.gridy = i;
+      gbc.anchor = GridBagConstraints.WEST;
+      gbc.fill = GridBagConstraints.NONE;
+      limitsFrame.add(new JLabel(LABELS[i]), gbc);
+      gbc.gridx = 1;
+      gbc.fill = GridBagConstraints.HORIZONTAL;
+      limitsFrame.add(fields[i], gbc);
+    }
+
+    JPanel buttonPanel = new JPanel();
+    JButton cancelButton = new JButton("Cancel");
+    JButton okButton = new JButton("OK");
+    buttonPanel.add(cancelButton);
+    buttonPanel.add(okButton);
+
+    gbc.gridx = 0;
+    gbc.gridy = LABELS.length;
+    gbc.gridwidth = 2;
+    gbc.anchor = GridBagConstraints.CENTER;
+    limitsFrame.add(buttonPanel, gbc);
+
+    // Applied right away, to transfers in progress too
+    cancelButton.addActionListener(e -> limitsFrame.dispose());
+    okButton.addActionListener(e -> {
+      long[] values = new long[fields.length];
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          values[i] = Long.parseLong(fields[i].getText().trim()) * 1024;
+          if (values[i] < 0) throw new NumberFormatException();
+        }
+      } catch (NumberFormatException ex) {
+        Alert.showError("Limits must be non-negative whole numbers.");
+        return;
+      }
+      limiter.setUploadLimit(values[0]);
+      limiter.setDownloadLimit(values[1]);
+      limiter.setPeerUploadLimit(values[2]);
+      limiter.setPeerDownloadLimit(values[3]);
+      limitsFrame.dispose();
+    });
+
+    limitsFrame.setVisible(true);
+  }
+}
@@ -0,0 +1,97 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.Config;
+import java.util.HashMap;
+import java.util.Map;
+
+// Upload and download rate limits of a node, as a whole and for each peer.
+// A transfer waits for both its peer's bucket and the node's. Limits are in
+// bytes per second, 0 meaning unlimited, and can be changed at any time.
+public class BandwidthLimiter {
+
+  private static final long RATE_LIMIT_BURST = Config.RATE_LIMIT_BURST;
+
+  private static class Direction {
+
+    final TokenBucket global = new TokenBucket(0, RATE_LIMIT_BURST);
+    long peerRate;
+    // Peer -> bucket, guarded by the Direction
+    final Map<NodeId, TokenBucket> peers = new HashMap<>();
+
+    synchronized TokenBucket peer(NodeId peerId) {
+      return peers.computeIfAbsent(
+        peerId,
+        id -> new TokenBucket(peerRate, RATE_LIMIT_BURST)
+      );
+    }
+
+    synchronized void setPeerRate(long rate) {
+      peerRate = rate;
+      peers.values().forEach(bucket -> bucket.setRate(rate));
+    }
+
+    void acquire(NodeId peerId, long bytes) throws InterruptedException {
+      if (peerId != null) peer(peerId).acquire(bytes);
+      global.acquire(bytes);
+    }
+  }
+
+  private final Direction upload = new Direction();
+  private final Direction download = new Direction();
+
+  public BandwidthLimiter() {
+    setUploadLimit(Config.UPLOAD_LIMIT);
+    setDownloadLimit(Config.DOWNLOAD_LIMIT);
+    setPeerUploadLimit(Config.PEER_UPLOAD_LIMIT);
+    setPeerDownloadLimit(Config.PEER_DOWNLOAD_LIMIT);
+  }
+
+  public void setUploadLimit(long bytesPerSecond) {
+    upload.global.setRate(bytesPerSecond);
+  }
+
+  public long getUploadLimit() {
+    return upload.global.getRate();
+  }
+
+  public void setDownloadLimit(long bytesPerSecond) {
+    download.global.setRate(bytesPerSecond);
+  }
+
+  public long getDownloadLimit() {
+    return download.global.getRate();
+  }
+
+  public void setPeerUploadLimit(long bytesPerSecond) {
+    upload.setPeerRate(bytesPerSecond);
+  }
+
+  public long getPeerUploadLimit() {
+    synchronized (upload) {
+      return upload.peerRate;
+    }
+  }
+
+  public void setPeerDownloadLimit(long bytesPerSecond) {
+    download.setPeerRate(bytesPerSecond);
+  }
+
+  public long getPeerDownloadLimit() {
+    synchronized (download) {
+      return download.peerRate;
+    }
+  }
+
+  // Blocks until bytes may be sent to the peer, which may be null if unknown
+  public void acquireUpload(NodeId peerId, long bytes)
+    throws InterruptedException {
+    upload.acquire(peerId, bytes);
+  }
+
+  // Blocks until bytes may be requested from the peer
+  public void acquireDownload(NodeId peerId, long bytes)
+    throws InterruptedException {
+    download.acquire(peerId, bytes);
+  }
+}
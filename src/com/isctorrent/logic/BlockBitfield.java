@@ -0,0 +1,107 @@
+package com.isctorrent.logic;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+// Completed block indices of a download, persisted next to its partial file
+class BlockBitfield {
+
+  private static final int MAGIC = 0x49534246; // "ISBF"
+  private final int blockCount;
+  private final long fileSize;
+  private final BitSet completed;
+
+  public BlockBitfield(int blockCount, long fileSize) {
+    this(blockCount, fileSize, new BitSet(blockCount));
+  }
+
+  private BlockBitfield(int blockCount, long fileSize, BitSet completed) {
+    this.blockCount = blockCount;
+    this.fileSize = fileSize;
+    this.completed = completed;
+  }
+
+  // Returns an empty bitfield if there is none on disk or it does not match
+  public static BlockBitfield loadOrCreate(
+    Path path,
+    int blockCount,
+    long fileSize
+  ) {
+    if (!Files.exists(path)) return new BlockBitfield(blockCount, fileSize);
+    try (
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path))
+      )
+    ) {
+      if (
+        in.readInt() != MAGIC ||
+        in.readInt() != blockCount ||
+        in.readLong() != fileSize
+      ) {
+        System.out.println("[INFO] Discarding stale bitfield: " + path);
+        return new BlockBitfield(blockCount, fileSize);
+      }
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new BlockBitfield(blockCount, fileSize, BitSet.valueOf(bytes));
+    } catch (IOException e) {
+      System.out.println("[ERROR] Failed to read bitfield: " + path);
+      return new BlockBitfield(blockCount, fileSize);
+    }
+  }
+
+  // Written to a temporary file first, so a crash never leaves it truncated
+  public synchronized void save(Path path) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(temp))
+      )
+    ) {
+      byte[] bytes = completed.toByteArray();
+      out.writeInt(MAGIC);
+      out.writeInt(blockCount);
+      out.writeLong(fileSize);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    try {
+      Files.move(
+        temp,
+        path,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  public synchronized BlockBitfield copy() {
+    return new BlockBitfield(blockCount, fileSize, (BitSet) completed.clone());
+  }
+
+  public synchronized void set(int index) {
+    completed.set(index);
+  }
+
+  public synchronized boolean get(int index) {
+    return completed.get(index);
+  }
+
+  public synchronized int getCompletedCount() {
+    return completed.cardinality();
+  }
+
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  public synchronized boolean isComplete() {
+    return completed.cardinality() == blockCount;
+  }
+}
@@ -0,0 +1,130 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileBlock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// LRU cache of file blocks bounded by the total size of their data. Blocks
+// sent with zero-copy serving or from mapped files do not go through it.
+public class BlockCache {
+
+  private final long budgetBytes;
+  private long sizeBytes = 0;
+  // hash:offset:length -> FileBlock, in access order
+  private final LinkedHashMap<String, FileBlock> blocks = new LinkedHashMap<>(
+    16,
+    0.75f,
+    true
+  );
+  // Hash -> keys, so a file can be invalidated without a full scan
+  private final Map<String, Set<String>> keysByHash = new HashMap<>();
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  public BlockCache(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  private static String key(String hash, long offset, long length) {
+    return hash + ":" + offset + ":" + length;
+  }
+
+  public synchronized FileBlock get(String hash, long offset, long length) {
+    FileBlock block = blocks.get(key(hash, offset, length));
+    if (block != null) hits++; else misses++;
+    return block;
+  }
+
+  // Cached under the requested length, which may exceed the data at EOF
+  public synchronized void put(String hash, long length, FileBlock block) {
+    long dataLength = block.getLength();
+    if (dataLength > budgetBytes) return;
+    String key = key(hash, block.getOffset(), length);
+    FileBlock previous = blocks.put(key, block);
+    if (previous != null) sizeBytes -= previous.getLength();
+    sizeBytes += dataLength;
+    keysByHash.computeIfAbsent(hash, k -> new HashSet<>()).add(key);
+    evict();
+  }
+
+  public synchronized void invalidate(String hash) {
+    Set<String> keys = keysByHash.remove(hash);
+    if (keys == null) return;
+    for (String key : keys) {
+      FileBlock block = blocks.remove(key);
+      if (block != null) sizeBytes -= block.getLength();
+    }
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, FileBlock>> iterator = blocks
+      .entrySet()
+      .iterator();
+    while (sizeBytes > budgetBytes && iterator.hasNext()) {
+      Map.Entry<String, FileBlock> eldest = iterator.next();
+      iterator.remove();
+      sizeBytes -= eldest.getValue().getLength();
+      String key = eldest.getKey();
+      String hash = key.substring(0, key.indexOf(':'));
+      Set<String> keys = keysByHash.get(hash);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) keysByHash.remove(hash);
+      }
+      evictions++;
+    }
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized double getHitRate() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return (
+      "BlockCache{size=" +
+      sizeBytes +
+      "/" +
+      budgetBytes +
+      ", blocks=" +
+      blocks.size() +
+      ", hits=" +
+      hits +
+      ", misses=" +
+      misses +
+      ", evictions=" +
+      evictions +
+      "}"
+    );
+  }
+}
@@ -0,0 +1,261 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileBlockRequestMessage;
+import com.isctorrent.logic.models.NodeId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// Hands out block requests to the peer workers of a download. A block that
+// fails verification goes back to the front of the queue for a different
+// peer, and is abandoned once every peer still serving has failed it.
+// Near the end of a download slow peers stop taking blocks that a faster
+// peer would finish first. Once every block has been handed out and few
+// are left in flight, idle peers request them again (endgame): the first
+// answer wins and the other requests are cancelled.
+class BlockScheduler {
+
+  // How often a peer held back re-checks the throughput of the others
+  private static final long RECHECK_INTERVAL = 250; // milliseconds
+
+  private final Deque<FileBlockRequestMessage> pending;
+  private final Map<Integer, Set<NodeId>> failedPeers;
+  // Block index -> peers it was sent to, with their reply
+  private final Map<Integer, Map<NodeId, CompletableFuture<Object>>> inFlight;
+  private final Map<Integer, FileBlockRequestMessage> inFlightRequests;
+  // Delivered or given up on, each released to the writer exactly once
+  private final Set<Integer> completed;
+  private final Set<NodeId> activePeers;
+  private final Map<NodeId, PeerStats> peerStats;
+  private final int endgameThreshold;
+  private final Consumer<FileBlockRequestMessage> onAbandoned;
+
+  public BlockScheduler(
+    Collection<FileBlockRequestMessage> requests,
+    Map<NodeId, PeerStats> peerStats,
+    int endgameThreshold,
+    Consumer<FileBlockRequestMessage> onAbandoned
+  ) {
+    this.pending = new ArrayDeque<>(requests);
+    this.failedPeers = new HashMap<>();
+    this.inFlight = new HashMap<>();
+    this.inFlightRequests = new HashMap<>();
+    this.completed = new HashSet<>();
+    this.activePeers = new HashSet<>(peerStats.keySet());
+    this.peerStats = peerStats;
+    this.endgameThreshold = endgameThreshold;
+    this.onAbandoned = onAbandoned;
+  }
+
+  // Waits up to timeoutMillis for a block this peer has not failed yet.
+  // Returns null right away once every block is done.
+  public synchronized FileBlockRequestMessage next(
+    NodeId peer,
+    long timeoutMillis
+  ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      if (pending.isEmpty() && inFlight.isEmpty()) return null;
+      boolean heldBack = !hasFairShare(peer);
+      Iterator<FileBlockRequestMessage> iterator = pending.iterator();
+      while (!heldBack && iterator.hasNext()) {
+        FileBlockRequestMessage request = iterator.next();
+        if (!hasFailed(request, peer)) {
+          iterator.remove();
+          Map<NodeId, CompletableFuture<Object>> holders = new HashMap<>();
+          holders.put(peer, null);
+          inFlight.put(request.getIndex(), holders);
+          inFlightRequests.put(request.getIndex(), request);
+          return request;
+        }
+      }
+      FileBlockRequestMessage duplicate = nextDuplicate(peer);
+      if (duplicate != null) return duplicate;
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) return null;
+      wait(heldBack ? Math.min(remaining, RECHECK_INTERVAL) : remaining);
+    }
+  }
+
+  public synchronized FileBlockRequestMessage poll(NodeId peer) {
+    try {
+      return next(peer, 0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  // In endgame, the block held by the fewest peers that this peer neither
+  // holds nor failed
+  private FileBlockRequestMessage nextDuplicate(NodeId peer) {
+    if (!pending.isEmpty() || inFlight.size() > endgameThreshold) return null;
+    FileBlockRequestMessage best = null;
+    int bestHolders = Integer.MAX_VALUE;
+    for (Map.Entry<Integer, Map<NodeId, CompletableFuture<Object>>> entry : inFlight.entrySet()) {
+      FileBlockRequestMessage request = inFlightRequests.get(entry.getKey());
+      Map<NodeId, CompletableFuture<Object>> holders = entry.getValue();
+      if (
+        holders.containsKey(peer) ||
+        hasFailed(request, peer) ||
+        holders.size() >= bestHolders
+      ) {
+        continue;
+      }
+      best = request;
+      bestHolders = holders.size();
+    }
+    if (best != null) inFlight.get(best.getIndex()).put(peer, null);
+    return best;
+  }
+
+  private boolean hasFailed(FileBlockRequestMessage request, NodeId peer) {
+    Set<NodeId> failed = failedPeers.get(request.getIndex());
+    return failed != null && failed.contains(peer);
+  }
+
+  // A peer n times slower than the fastest one only takes a block while
+  // at least n are pending, so the last blocks go to the fast peers.
+  // Peers not measured yet always get blocks.
+  private boolean hasFairShare(NodeId peer) {
+    double throughput = peerStats.get(peer).getThroughput();
+    if (throughput <= 0) return true;
+    double bestThroughput = throughput;
+    for (NodeId activePeer : activePeers) {
+      bestThroughput =
+        Math.max(bestThroughput, peerStats.get(activePeer).getThroughput());
+    }
+    return pending.size() > bestThroughput / throughput - 1;
+  }
+
+  // Lets a later winner cancel this request
+  public void sent(
+    FileBlockRequestMessage request,
+    NodeId peer,
+    CompletableFuture<Object> reply
+  ) {
+    synchronized (this) {
+      Map<NodeId, CompletableFuture<Object>> holders = inFlight.get(
+        request.getIndex()
+      );
+      if (holders != null && holders.containsKey(peer)) {
+        holders.put(peer, reply);
+        return;
+      }
+    }
+    // Completed by another peer in the meantime
+    reply.cancel(false);
+  }
+
+  // Returns false if another peer delivered the block first, in which case
+  // the answer is discarded. The requests to the other peers are cancelled,
+  // which also tells those peers to drop them if still queued.
+  public boolean complete(FileBlockRequestMessage request, NodeId peer) {
+    List<CompletableFuture<Object>> losers = new ArrayList<>();
+    synchronized (this) {
+      if (!completed.add(request.getIndex())) return false;
+      inFlightRequests.remove(request.getIndex());
+      Map<NodeId, CompletableFuture<Object>> holders = inFlight.remove(
+        request.getIndex()
+      );
+      if (holders != null) {
+        holders.forEach((holder, reply) -> {
+          if (!holder.equals(peer) && reply != null) losers.add(reply);
+        });
+      }
+      notifyAll();
+    }
+    // Cancelling sends a message, so it is done without the lock held
+    losers.forEach(reply -> reply.cancel(false));
+    return true;
+  }
+
+  public synchronized void retry(
+    FileBlockRequestMessage request,
+    NodeId failedPeer
+  ) {
+    Set<NodeId> failed = failedPeers.computeIfAbsent(
+      request.getIndex(),
+      index -> new HashSet<>()
+    );
+    failed.add(failedPeer);
+    if (!release(request, failedPeer)) return;
+    if (failed.containsAll(activePeers)) {
+      completed.add(request.getIndex());
+      onAbandoned.accept(request);
+      return;
+    }
+    pending.addFirst(request);
+    notifyAll();
+  }
+
+  // Requests a peer will not answer, to be served by the others
+  public synchronized void requeue(
+    NodeId peer,
+    Collection<FileBlockRequestMessage> requests
+  ) {
+    for (FileBlockRequestMessage request : requests) {
+      if (release(request, peer)) pending.add(request);
+    }
+    notifyAll();
+  }
+
+  // Drops a peer's claim on a block, returning true if nobody else holds
+  // it and it is not done yet
+  private boolean release(FileBlockRequestMessage request, NodeId peer) {
+    int index = request.getIndex();
+    if (completed.contains(index)) return false;
+    Map<NodeId, CompletableFuture<Object>> holders = inFlight.get(index);
+    if (holders != null) {
+      holders.remove(peer);
+      if (!holders.isEmpty()) return false;
+      inFlight.remove(index);
+      inFlightRequests.remove(index);
+    }
+    return true;
+  }
+
+  public synchronized void peerLeft(NodeId peer) {
+    activePeers.remove(peer);
+    // Blocks only the departed peer had not failed can no longer be served
+    Iterator<FileBlockRequestMessage> iterator = pending.iterator();
+    while (iterator.hasNext()) {
+      FileBlockRequestMessage request = iterator.next();
+      Set<NodeId> failed = failedPeers.get(request.getIndex());
+      if (failed != null && failed.containsAll(activePeers)) {
+        iterator.remove();
+        completed.add(request.getIndex());
+        onAbandoned.accept(request);
+      }
+    }
+    notifyAll();
+  }
+
+  public synchronized boolean isDone() {
+    return pending.isEmpty() && inFlight.isEmpty();
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  public synchronized int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  // Gives up on every block not done yet. They count as done from here on,
+  // so a late answer can no longer complete one.
+  public synchronized List<FileBlockRequestMessage> drainUnserved() {
+    List<FileBlockRequestMessage> unserved = new ArrayList<>();
+    for (FileBlockRequestMessage request : pending) {
+      if (completed.add(request.getIndex())) unserved.add(request);
+    }
+    for (FileBlockRequestMessage request : inFlightRequests.values()) {
+      if (completed.add(request.getIndex())) unserved.add(request);
+    }
+    pending.clear();
+    inFlight.clear();
+    inFlightRequests.clear();
+    return unserved;
+  }
+}
@@ -1,54 +1,222 @@
 package com.isctorrent.logic;
 
+import com.isctorrent.logic.messages.CancelBlockRequestMessage;
+import com.isctorrent.logic.messages.CorrelatedMessage;
+import com.isctorrent.logic.messages.FileBlockRequestMessage;
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.ExecutorFactory;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-class Connection {
+class Connection implements ReplyChannel {
     private final Socket socket;
-    private final ObjectInputStream inputStream;
-    private final ObjectOutputStream outputStream;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    // Correlation id -> pending reply
+    private final Map<Long, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    // Locks rather than monitors, so blocked virtual threads do not pin a carrier
+    private final Lock readLock = new ReentrantLock();
+    private final Lock writeLock = new ReentrantLock();
+    // Encoding used for outgoing frames, raised once the handshake agrees on it
+    private volatile int protocolVersion = WireProtocol.VERSION_SERIALIZED;
+    // Block answers sent on this connection may be compressed
+    private volatile boolean compressionEnabled;
+    private volatile NodeId peerId;
+    private Thread reader;
 
     public Connection(Socket socket) throws IOException {
         this.socket = socket;
-        this.outputStream = new ObjectOutputStream(socket.getOutputStream());
-        this.inputStream = new ObjectInputStream(socket.getInputStream());
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
     }
 
     public Socket getSocket() {
         return socket;
     }
 
-    public ObjectInputStream getInputStream() {
+    public DataInputStream getInputStream() {
         return inputStream;
     }
 
-    public ObjectOutputStream getOutputStream() {
+    public DataOutputStream getOutputStream() {
         return outputStream;
     }
 
-    public void send(Object object) {
-        synchronized (outputStream) {
-            try {
-                outputStream.writeObject(object);
-                outputStream.flush();
-                outputStream.reset();
-                System.out.println("[INFO] Sent: " + object);
-            } catch (IOException e) {
-                System.err.println("[ERROR] Failed to send: " + object);
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public NodeId getPeerId() {
+        return peerId;
+    }
+
+    public void setPeerId(NodeId peerId) {
+        this.peerId = peerId;
+    }
+
+    private boolean write(long correlationId, Object object) {
+        writeLock.lock();
+        try {
+            WireProtocol.writeFrame(outputStream, protocolVersion, correlationId, object);
+            outputStream.flush();
+            System.out.println("[INFO] Sent: " + object);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to send: " + object);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean supportsFileRegions() {
+        return protocolVersion == WireProtocol.VERSION_BINARY && socket.getChannel() != null;
+    }
+
+    // Replies with a FileBlockAnswerMessage whose data is moved from the file
+    // to the socket by the kernel instead of being copied through the heap
+    public boolean replyWithFileRegion(long correlationId, FileBlockRequestMessage request, FileChannel file, Runnable release) {
+        SocketChannel socketChannel = socket.getChannel();
+        writeLock.lock();
+        try {
+            long position = request.getOffset();
+            long count = Math.min(request.getLength(), file.size() - position);
+            if (position < 0 || count <= 0)
+                return false;
+            outputStream.write(WireProtocol.encodeFileBlockAnswerHeader(correlationId, request, (int) count));
+            outputStream.flush();
+            while (count > 0) {
+                long transferred = file.transferTo(position, count, socketChannel);
+                if (transferred == 0 && position >= file.size())
+                    throw new IOException("File truncated during transfer");
+                position += transferred;
+                count -= transferred;
             }
+            System.out.println("[INFO] Sent region: " + request);
+            return true;
+        } catch (IOException e) {
+            // A partially written frame leaves the stream unusable
+            System.err.println("[ERROR] Failed to send region: " + request);
+            close();
+            return false;
+        } finally {
+            writeLock.unlock();
+            release.run();
         }
     }
 
-    public Object receive() {
-        synchronized (inputStream) {
-            try {
-                Object object = inputStream.readObject();
-                System.out.println("[INFO] Received: " + object);
-                return object;
-            } catch (ClassNotFoundException | IOException e) {
-                System.err.println("[ERROR] Error reading object: " + e.getMessage());
-                return null;
+    // Replies with a FileBlockAnswerMessage whose data is written from the given
+    // buffer, typically a slice of a memory-mapped file
+    public boolean replyWithBuffer(long correlationId, FileBlockRequestMessage request, ByteBuffer data, Runnable release) {
+        SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel == null) {
+            release.run();
+            return false;
+        }
+        writeLock.lock();
+        try {
+            outputStream.write(WireProtocol.encodeFileBlockAnswerHeader(correlationId, request, data.remaining()));
+            outputStream.flush();
+            while (data.hasRemaining()) {
+                socketChannel.write(data);
             }
+            System.out.println("[INFO] Sent buffer: " + request);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[ERROR] Failed to send buffer: " + request);
+            close();
+            return false;
+        } finally {
+            writeLock.unlock();
+            release.run();
+        }
+    }
+
+    // Returns the next frame, or null once the stream ends
+    public CorrelatedMessage receive() {
+        readLock.lock();
+        try {
+            CorrelatedMessage message = WireProtocol.readFrame(inputStream);
+            System.out.println("[INFO] Received: " + message);
+            return message;
+        } catch (IOException e) {
+            System.err.println("[ERROR] Error reading object: " + e.getMessage());
+            return null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Sends a message tagged with a fresh correlation id. The future completes
+    // with the reply payload, or exceptionally if the connection is lost.
+    // Once used, all incoming messages are consumed by the reader loop.
+    public CompletableFuture<Object> request(Object message) {
+        startReader();
+        long correlationId = nextCorrelationId.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        pendingRequests.put(correlationId, future);
+        future.whenComplete((reply, e) -> {
+            pendingRequests.remove(correlationId);
+            // Lets the peer drop the upload if it has not started it yet
+            if (future.isCancelled() && message instanceof FileBlockRequestMessage && isAlive())
+                write(correlationId, new CancelBlockRequestMessage());
+        });
+        if (!isAlive() || !write(correlationId, message)) {
+            future.completeExceptionally(new IOException("Failed to send: " + message));
+        }
+        return future;
+    }
+
+    public void reply(long correlationId, Object message) {
+        write(correlationId, message);
+    }
+
+    private synchronized void startReader() {
+        if (reader != null)
+            return;
+        reader = ExecutorFactory.startDaemonThread(this::readLoop);
+    }
+
+    private void readLoop() {
+        CorrelatedMessage message;
+        while ((message = receive()) != null) {
+            CompletableFuture<Object> future = pendingRequests.get(message.getCorrelationId());
+            if (future != null) {
+                future.complete(message.getPayload());
+            } else {
+                System.out.println("[INFO] Discarded reply for: " + message.getCorrelationId());
+            }
+        }
+        close();
+        failPendingRequests();
+    }
+
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection closed: " + socket);
+        for (CompletableFuture<Object> future : pendingRequests.values()) {
+            future.completeExceptionally(closed);
         }
     }
 
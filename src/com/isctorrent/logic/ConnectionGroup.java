@@ -0,0 +1,133 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.Config;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// The connections to one peer. The first one carries the handshake and
+// searches; downloads also stripe block requests over extra connections,
+// opened and closed as the download finds them worth it.
+public class ConnectionGroup {
+
+  private final NodeId peerId;
+  private final Node node;
+  private final int maxSize;
+  private final long handshakeTimeout;
+  private final List<Connection> connections;
+  // Connections being opened, counted against maxSize
+  private int opening;
+
+  public ConnectionGroup(
+    NodeId peerId,
+    Connection primary,
+    Node node,
+    int maxSize,
+    long handshakeTimeout
+  ) {
+    this.peerId = peerId;
+    this.node = node;
+    this.maxSize = Math.max(1, maxSize);
+    this.handshakeTimeout = handshakeTimeout;
+    this.connections = new ArrayList<>();
+    this.connections.add(primary);
+  }
+
+  public NodeId getPeerId() {
+    return peerId;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized int size() {
+    return connections.size();
+  }
+
+  public synchronized Connection getPrimary() {
+    return connections.get(0);
+  }
+
+  // Opens one more connection, or returns null if the group is full or the
+  // peer refused
+  public Connection grow() {
+    synchronized (this) {
+      if (connections.size() + opening >= maxSize) return null;
+      opening++;
+    }
+    Connection connection = open();
+    synchronized (this) {
+      opening--;
+      if (connection != null) {
+        connections.add(connection);
+        System.out.println(
+          "[INFO] Opened connection " + connections.size() + " to: " + peerId
+        );
+      }
+    }
+    return connection;
+  }
+
+  // Closes an extra connection. The primary one is kept.
+  public synchronized void release(Connection connection) {
+    if (connections.indexOf(connection) > 0) {
+      connections.remove(connection);
+      connection.close();
+      System.out.println("[INFO] Closed a connection to: " + peerId);
+    }
+  }
+
+  // Closes the extra connections beyond the first size ones
+  public synchronized void shrinkTo(int size) {
+    while (connections.size() > Math.max(1, size)) {
+      connections.remove(connections.size() - 1).close();
+    }
+  }
+
+  public synchronized void close() {
+    connections.forEach(Connection::close);
+    connections.clear();
+  }
+
+  private Connection open() {
+    Connection connection;
+    try {
+      connection =
+        new Connection(new Socket(peerId.getHostName(), peerId.getPort()));
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to connect to peer: " + peerId);
+      return null;
+    }
+    NewConnectionRequest request = new NewConnectionRequest(
+      node.getHostName(),
+      node.getPort(),
+      WireProtocol.MAX_VERSION,
+      true,
+      Config.COMPRESSION
+    );
+    try {
+      Object object = connection
+        .request(request)
+        .get(handshakeTimeout, TimeUnit.MILLISECONDS);
+      if (object instanceof NewConnectionRequestAck) {
+        NewConnectionRequestAck ack = (NewConnectionRequestAck) object;
+        connection.setProtocolVersion(ack.getProtocolVersion());
+        connection.setCompressionEnabled(ack.isCompression());
+        return connection;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      System.err.println("[ERROR] Connection timeout with peer: " + peerId);
+    }
+    connection.close();
+    return null;
+  }
+}
@@ -3,29 +3,104 @@ package com.isctorrent.logic;
 import com.isctorrent.gui.Alert;
 import com.isctorrent.logic.messages.*;
 import com.isctorrent.logic.models.*;
+import com.isctorrent.metrics.MetricsRegistry;
 import com.isctorrent.util.Config;
+import com.isctorrent.util.ExecutorFactory;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DownloadTasksManager {
 
   private static final int TASK_QUEUE_TIMEOUT = 5; // seconds
   private static final int POOL_TERMINATION_TIMEOUT = 60; // seconds
-  private static final long BLOCK_SIZE = Config.BLOCK_SIZE;
+  private static final int BLOCK_HASHES_TIMEOUT = 5; // seconds
+  private static final int PIPELINE_WINDOW_SIZE = Config.PIPELINE_WINDOW_SIZE;
+  private static final int PIPELINE_MIN_WINDOW_SIZE =
+    Config.PIPELINE_MIN_WINDOW_SIZE;
+  private static final int PIPELINE_MAX_WINDOW_SIZE =
+    Config.PIPELINE_MAX_WINDOW_SIZE;
+  private static final int BITFIELD_SAVE_INTERVAL = 64; // blocks
+  private static final long PIPELINE_MAX_BYTES = Config.PIPELINE_MAX_BYTES;
+  private static final long BLOCK_REQUEST_TIMEOUT = Config.BLOCK_REQUEST_TIMEOUT;
+  private static final int ENDGAME_THRESHOLD = Config.ENDGAME_THRESHOLD;
+  private static final int MIN_BLOCK_SIZE = Config.MIN_BLOCK_SIZE;
+  private static final int MAX_BLOCK_SIZE = Config.MAX_BLOCK_SIZE;
+  private static final long STRIPE_ADJUST_INTERVAL =
+    Config.STRIPE_ADJUST_INTERVAL;
+  private static final double STRIPE_MIN_GAIN = Config.STRIPE_MIN_GAIN;
   private final String fileName;
   private final WorkFolder workFolder;
+  private final BandwidthLimiter bandwidthLimiter;
+  private final MetricsRegistry metrics;
   private List<FileBlockRequestMessage> requests;
   // Shared variables
-  private List<FileBlockAnswerMessage> answers;
-  private Map<NodeId, Integer> numBlocksByPeer;
+  private String fileHash;
+  private Path partialPath;
+  private FileChannel partialFile;
+  private Path bitfieldPath;
+  private BlockBitfield bitfield;
+  private int blockSize;
+  private List<byte[]> blockHashes;
+  private AtomicInteger receivedBlocks;
+  private Map<NodeId, PeerStats> peerStats;
   private MyCountDownLatch writerLatch;
+  // Guarded by itself, which is notified whenever a stripe leaves
+  private final Map<NodeId, PeerStripes> stripesByPeer;
 
-  public DownloadTasksManager(String fileName, WorkFolder workFolder) {
+  // One worker and its connection to a peer
+  private static class Stripe {
+
+    final NodeId peerId;
+    final Connection connection;
+    // Set to stop taking blocks and leave once the window drains
+    volatile boolean stopping;
+
+    Stripe(NodeId peerId, Connection connection) {
+      this.peerId = peerId;
+      this.connection = connection;
+    }
+  }
+
+  // The stripes of one peer, and the throughput they were last sized by
+  private static class PeerStripes {
+
+    final ConnectionGroup group;
+    final List<Stripe> stripes = new ArrayList<>();
+    double baselineThroughput;
+    // A stripe was added and is on probation until the next adjustment
+    boolean probing;
+    // Adjustments skipped after a probe failed, doubled on each failure
+    int backoff = 1;
+    int skipped;
+
+    PeerStripes(ConnectionGroup group) {
+      this.group = group;
+    }
+  }
+
+  public DownloadTasksManager(
+    String fileName,
+    WorkFolder workFolder,
+    BandwidthLimiter bandwidthLimiter,
+    MetricsRegistry metrics
+  ) {
     this.fileName = fileName;
     this.workFolder = workFolder;
+    this.bandwidthLimiter = bandwidthLimiter;
+    this.metrics = metrics;
     this.requests = new ArrayList<>();
-    this.answers = new ArrayList<>();
-    this.numBlocksByPeer = new HashMap<>();
+    this.receivedBlocks = new AtomicInteger();
+    this.peerStats = new LinkedHashMap<>();
+    this.stripesByPeer = new LinkedHashMap<>();
   }
 
   public String getFileName() {
@@ -42,12 +117,13 @@ public class DownloadTasksManager {
 
   public List<FileBlockRequestMessage> createRequestList(
     String fileHash,
-    long fileSize
+    long fileSize,
+    int blockSize
   ) {
     List<FileBlockRequestMessage> requests = new ArrayList<>();
-    for (long offset = 0; offset < fileSize; offset += BLOCK_SIZE) {
-      int currentBlockSize = (int) Math.min(BLOCK_SIZE, fileSize - offset);
-      int blockIndex = (int) (offset / BLOCK_SIZE);
+    for (long offset = 0; offset < fileSize; offset += blockSize) {
+      int currentBlockSize = (int) Math.min(blockSize, fileSize - offset);
+      int blockIndex = (int) (offset / blockSize);
       FileBlockRequestMessage request = new FileBlockRequestMessage(
         fileHash,
         offset,
@@ -61,18 +137,236 @@ public class DownloadTasksManager {
 
   public void download(
     List<FileSearchResult> results,
-    Map<NodeId, Connection> connections
+    Map<NodeId, ConnectionGroup> connections
   ) {
-    List<FileBlockRequestMessage> requests = prepareRequests(results);
+    results = filterByValidLayout(results);
+    if (results.isEmpty()) {
+      Alert.showError("No peer advertised a valid layout for: " + fileName);
+      return;
+    }
+    String fileHash = results.get(0).getFileHash();
+    long fileSize = results.get(0).getFileSize();
+    List<FileBlockRequestMessage> allRequests = prepareRequests(results);
+    // Blocks are verified against hashes that match the advertised root
+    results = filterByMerkleRoot(results);
+    List<byte[]> blockHashes = fetchBlockHashes(
+      results,
+      connections,
+      allRequests.size()
+    );
+    if (blockHashes == null) {
+      Alert.showError("No peer provided valid block hashes for: " + fileName);
+      return;
+    }
+    Path partialPath = workFolder.getPartialFilePath(fileHash);
+    Path bitfieldPath = workFolder.getBitfieldPath(fileHash);
+    BlockBitfield bitfield = Files.exists(partialPath)
+      ? BlockBitfield.loadOrCreate(bitfieldPath, allRequests.size(), fileSize)
+      : new BlockBitfield(allRequests.size(), fileSize);
+    // Only blocks missing from previous attempts are requested
+    List<FileBlockRequestMessage> requests = new ArrayList<>();
+    for (FileBlockRequestMessage request : allRequests) {
+      if (!bitfield.get(request.getIndex())) requests.add(request);
+    }
+    if (requests.size() < allRequests.size()) {
+      System.out.println(
+        "[INFO] Resuming download with " +
+        bitfield.getCompletedCount() +
+        "/" +
+        allRequests.size() +
+        " blocks: " +
+        fileName
+      );
+    }
+    FileChannel partialFile;
+    try {
+      partialFile = openPartialFile(partialPath, fileSize);
+    } catch (IOException e) {
+      Alert.showError("Failed to create file: " + partialPath);
+      return;
+    }
     synchronized (this) {
-      this.answers.clear();
-      this.numBlocksByPeer.clear();
+      this.fileHash = fileHash;
+      this.partialPath = partialPath;
+      this.partialFile = partialFile;
+      this.bitfieldPath = bitfieldPath;
+      this.bitfield = bitfield;
+      this.blockHashes = blockHashes;
+      this.blockSize = results.get(0).getBlockSize();
+      this.receivedBlocks.set(0);
+      this.peerStats = new LinkedHashMap<>();
+      for (NodeId peerId : getPeerIdsWithFile(results)) {
+        this.peerStats.put(peerId, new PeerStats());
+      }
       this.writerLatch = new MyCountDownLatch(requests.size());
     }
     startWriterThread(requests, System.currentTimeMillis());
     dispatchTasks(results, connections, requests);
   }
 
+  // Blocks are written in place as they arrive, so the file is preallocated
+  private static FileChannel openPartialFile(Path path, long fileSize)
+    throws IOException {
+    FileChannel channel = FileChannel.open(
+      path,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE
+    );
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      file.setLength(fileSize);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  private boolean writeBlock(
+    FileBlockRequestMessage request,
+    FileBlockAnswerMessage answer
+  ) {
+    ByteBuffer data = ByteBuffer.wrap(answer.getData());
+    if (data.remaining() != request.getLength()) {
+      System.out.println("[ERROR] Wrong block length: " + answer);
+      return false;
+    }
+    try {
+      long position = request.getOffset();
+      while (data.hasRemaining()) {
+        position += partialFile.write(data, position);
+      }
+      return true;
+    } catch (IOException e) {
+      System.out.println("[ERROR] Failed to write block: " + answer);
+      return false;
+    }
+  }
+
+  // The data is forced before the bitfield claims it, so after a crash the
+  // bitfield never lists a block that is not on disk
+  private synchronized void saveProgress() {
+    BlockBitfield snapshot = bitfield.copy();
+    try {
+      partialFile.force(false);
+      snapshot.save(bitfieldPath);
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to save progress: " + bitfieldPath);
+    }
+  }
+
+  // The block size and file size come from the peers, and must not make the
+  // request list endless or too large to index
+  private static List<FileSearchResult> filterByValidLayout(
+    List<FileSearchResult> results
+  ) {
+    List<FileSearchResult> valid = new ArrayList<>();
+    for (FileSearchResult result : results) {
+      int blockSize = result.getBlockSize();
+      long fileSize = result.getFileSize();
+      if (
+        blockSize >= MIN_BLOCK_SIZE &&
+        blockSize <= MAX_BLOCK_SIZE &&
+        Integer.bitCount(blockSize) == 1 &&
+        fileSize >= 0 &&
+        fileSize / blockSize < Integer.MAX_VALUE
+      ) {
+        valid.add(result);
+      } else {
+        System.out.println(
+          "[ERROR] Invalid file layout from peer: " + result.getHostName()
+        );
+      }
+    }
+    return valid;
+  }
+
+  // The layout advertised by the most peers wins, so a single peer
+  // answering first cannot exclude the others
+  private static List<FileSearchResult> filterByMerkleRoot(
+    List<FileSearchResult> results
+  ) {
+    Map<String, Integer> votes = new HashMap<>();
+    FileSearchResult chosen = results.get(0);
+    for (FileSearchResult result : results) {
+      int count = votes.merge(layoutOf(result), 1, Integer::sum);
+      if (count > votes.get(layoutOf(chosen))) chosen = result;
+    }
+    String layout = layoutOf(chosen);
+    List<FileSearchResult> matching = new ArrayList<>();
+    for (FileSearchResult result : results) {
+      if (layoutOf(result).equals(layout)) {
+        matching.add(result);
+      } else {
+        System.out.println(
+          "[ERROR] Conflicting file layout from peer: " + result.getHostName()
+        );
+      }
+    }
+    return matching;
+  }
+
+  private static String layoutOf(FileSearchResult result) {
+    return (
+      result.getMerkleRoot() +
+      ":" +
+      result.getBlockSize() +
+      ":" +
+      result.getFileSize()
+    );
+  }
+
+  // The first list whose root matches the advertised one is used
+  private List<byte[]> fetchBlockHashes(
+    List<FileSearchResult> results,
+    Map<NodeId, ConnectionGroup> connections,
+    int blockCount
+  ) {
+    String fileHash = results.get(0).getFileHash();
+    String merkleRoot = results.get(0).getMerkleRoot();
+    for (NodeId peerId : getPeerIdsWithFile(results)) {
+      ConnectionGroup group = connections.get(peerId);
+      if (group == null) continue;
+      try {
+        Object response = group
+          .getPrimary()
+          .request(new BlockHashesRequestMessage(fileHash))
+          .get(BLOCK_HASHES_TIMEOUT, TimeUnit.SECONDS);
+        if (!(response instanceof BlockHashesAnswerMessage)) {
+          System.out.println("[ERROR] Unexpected response: " + response);
+          continue;
+        }
+        List<byte[]> hashes =
+          ((BlockHashesAnswerMessage) response).getBlockHashes();
+        if (
+          hashes.size() == blockCount &&
+          MerkleTree.toHex(MerkleTree.computeRoot(hashes)).equals(merkleRoot)
+        ) {
+          return hashes;
+        }
+        System.out.println("[ERROR] Invalid block hashes from peer: " + peerId);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException | TimeoutException e) {
+        System.out.println("[ERROR] No block hashes from peer: " + peerId);
+      }
+    }
+    return null;
+  }
+
+  private boolean verifyBlock(
+    FileBlockRequestMessage request,
+    FileBlockAnswerMessage answer
+  ) {
+    byte[] data = answer.getData();
+    if (data.length != request.getLength()) return false;
+    return MessageDigest.isEqual(
+      MerkleTree.hashBlock(data, 0, data.length),
+      blockHashes.get(request.getIndex())
+    );
+  }
+
   private List<NodeId> getPeerIdsWithFile(List<FileSearchResult> results) {
     List<NodeId> peers = new ArrayList<>();
     for (FileSearchResult result : results) {
@@ -86,14 +380,15 @@ public class DownloadTasksManager {
   ) {
     String fileHash = results.get(0).getFileHash();
     long fileSize = results.get(0).getFileSize();
-    return createRequestList(fileHash, fileSize);
+    int blockSize = results.get(0).getBlockSize();
+    return createRequestList(fileHash, fileSize, blockSize);
   }
 
   private void startWriterThread(
     List<FileBlockRequestMessage> requests,
     long startTime
   ) {
-    new Thread(() -> {
+    ExecutorFactory.startThread(() -> {
       try {
         writerLatch.await();
       } catch (InterruptedException e) {
@@ -102,97 +397,347 @@ public class DownloadTasksManager {
         return;
       }
 
-      synchronized (answers) {
-        int missingBlocks = requests.size() - answers.size();
-        if (missingBlocks > 0) {
-          Alert.showError(
-            "Download failed: " + missingBlocks + " blocks missing."
-          );
-          return;
-        }
-        Collections.sort(
-          answers,
-          (a, b) -> Long.compare(a.getOffset(), b.getOffset())
-        );
-        String path = workFolder.getTimeStampedFilePath(fileName);
-        workFolder.writeFileAndUpdateFileMetadataMap(
-          path,
-          answers.stream().map(answer -> answer.getData()).toList()
+      int missingBlocks =
+        bitfield.getBlockCount() - bitfield.getCompletedCount();
+      saveProgress();
+      try {
+        partialFile.close();
+      } catch (IOException e) {
+        System.err.println("[ERROR] Failed to close file: " + partialPath);
+        missingBlocks = Math.max(missingBlocks, 1);
+      }
+      if (missingBlocks > 0) {
+        // The partial file and its bitfield are kept for the next attempt
+        Alert.showError(
+          "Download failed: " + missingBlocks + " blocks missing."
         );
-        long endTime = System.currentTimeMillis();
-        showCompletionWindow(path, endTime - startTime);
+        return;
+      }
+      // The blocks only matched the hashes of the chosen root, which must
+      // also add up to the file that was asked for
+      FileMetadata downloaded = workFolder.hashDownload(partialPath);
+      if (downloaded == null || !downloaded.getFileHash().equals(fileHash)) {
+        // Kept, but fetched again in full on the next attempt
+        workFolder.deleteDownloadFile(bitfieldPath);
+        Alert.showError("Download failed: file does not match its hash.");
+        return;
+      }
+      String path = workFolder.getTimeStampedFilePath(fileName);
+      if (!workFolder.completeDownload(partialPath, path, downloaded)) {
+        Alert.showError("Failed to write file: " + path);
+        return;
       }
-    })
-      .start();
+      workFolder.deleteDownloadFile(bitfieldPath);
+      long endTime = System.currentTimeMillis();
+      showCompletionWindow(path, endTime - startTime);
+    });
   }
 
   private void dispatchTasks(
     List<FileSearchResult> results,
-    Map<NodeId, Connection> connections,
+    Map<NodeId, ConnectionGroup> connections,
     List<FileBlockRequestMessage> requests
   ) {
-    BlockingQueue<FileBlockRequestMessage> taskQueue = new LinkedBlockingQueue<>(
-      requests
-    );
-
     List<NodeId> peerIds = getPeerIdsWithFile(results);
-    ExecutorService pool = Executors.newFixedThreadPool(peerIds.size());
-
-    for (NodeId peerId : peerIds) {
-      pool.submit(() -> processTasks(peerId, connections.get(peerId), taskQueue)
-      );
+    // Abandoned blocks are released so the writer can report them
+    BlockScheduler scheduler = new BlockScheduler(
+      requests,
+      peerStats,
+      ENDGAME_THRESHOLD,
+      request -> writerLatch.countDown()
+    );
+    metrics.gauge(
+      "download_pending_blocks",
+      scheduler::getPendingCount,
+      "file",
+      fileName
+    );
+    metrics.gauge(
+      "download_in_flight_blocks",
+      scheduler::getInFlightCount,
+      "file",
+      fileName
+    );
+    ExecutorService pool = ExecutorFactory.newCachedThreadPool();
+    synchronized (stripesByPeer) {
+      stripesByPeer.clear();
+      for (NodeId peerId : peerIds) {
+        ConnectionGroup group = connections.get(peerId);
+        peerStats.get(peerId).started();
+        if (group == null) {
+          scheduler.peerLeft(peerId);
+          continue;
+        }
+        PeerStripes peerStripes = new PeerStripes(group);
+        stripesByPeer.put(peerId, peerStripes);
+        startStripe(peerStripes, group.getPrimary(), scheduler, pool);
+      }
     }
-    pool.shutdown();
+    ScheduledExecutorService tuner = ExecutorFactory.newSingleThreadScheduledExecutor();
+    tuner.scheduleWithFixedDelay(
+      () -> adjustStripes(scheduler, pool),
+      STRIPE_ADJUST_INTERVAL,
+      STRIPE_ADJUST_INTERVAL,
+      TimeUnit.MILLISECONDS
+    );
     try {
-      if (!pool.awaitTermination(POOL_TERMINATION_TIMEOUT, TimeUnit.SECONDS)) {
+      if (!awaitStripes(POOL_TERMINATION_TIMEOUT * 1000L)) {
         pool.shutdownNow();
+        awaitStripes(TASK_QUEUE_TIMEOUT * 1000L);
       }
     } catch (InterruptedException e) {
       pool.shutdownNow();
       Thread.currentThread().interrupt();
       System.err.println("[ERROR] Thread pool termination interrupted.");
+    } finally {
+      tuner.shutdownNow();
+      pool.shutdown();
     }
+    metrics.remove("download_pending_blocks", "file", fileName);
+    metrics.remove("download_in_flight_blocks", "file", fileName);
+    // Blocks no peer could serve are released so the writer can report them.
+    // A stripe still finishing one after the timeout can no longer complete
+    // it, so each block is counted down once.
+    scheduler.drainUnserved().forEach(request -> writerLatch.countDown());
   }
 
-  private void processTasks(
-    NodeId peerId,
+  private boolean awaitStripes(long timeoutMillis)
+    throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (stripesByPeer) {
+      while (stripesByPeer.values().stream().anyMatch(p -> !p.stripes.isEmpty())) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+        stripesByPeer.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  // Called with the stripes monitor held
+  private void startStripe(
+    PeerStripes peerStripes,
     Connection connection,
-    BlockingQueue<FileBlockRequestMessage> taskQueue
+    BlockScheduler scheduler,
+    ExecutorService pool
   ) {
-    while (true) {
-      FileBlockRequestMessage request = null;
-      try {
-        request = taskQueue.poll(TASK_QUEUE_TIMEOUT, TimeUnit.SECONDS);
-        if (request == null) break;
-        connection.send(request);
+    Stripe stripe = new Stripe(peerStripes.group.getPeerId(), connection);
+    peerStripes.stripes.add(stripe);
+    try {
+      pool.submit(() -> processTasks(stripe, peerStripes, scheduler));
+    } catch (RejectedExecutionException e) {
+      // Grown as the download ended
+      peerStripes.stripes.remove(stripe);
+      peerStripes.group.release(connection);
+    }
+  }
+
+  // Hill climbing per peer: a stripe is added and kept if the peer's
+  // throughput rose by at least STRIPE_MIN_GAIN at the next adjustment,
+  // otherwise it is stopped and the next probe waits twice as long. Peers
+  // are only grown while there are enough blocks left to keep a new stripe
+  // busy.
+  private void adjustStripes(BlockScheduler scheduler, ExecutorService pool) {
+    List<PeerStripes> growing = new ArrayList<>();
+    synchronized (stripesByPeer) {
+      for (PeerStripes peerStripes : stripesByPeer.values()) {
+        List<Stripe> stripes = peerStripes.stripes;
+        if (stripes.isEmpty()) continue;
+        Stripe last = stripes.get(stripes.size() - 1);
+        // Wait for a stopped stripe to leave before resizing again
+        if (last.stopping) continue;
+        double throughput = peerStats
+          .get(peerStripes.group.getPeerId())
+          .getThroughput();
+        if (throughput <= 0) continue;
+        if (peerStripes.probing) {
+          peerStripes.probing = false;
+          if (
+            throughput >=
+            peerStripes.baselineThroughput * (1 + STRIPE_MIN_GAIN)
+          ) {
+            peerStripes.baselineThroughput = throughput;
+            peerStripes.backoff = 1;
+          } else {
+            last.stopping = true;
+            peerStripes.skipped = 0;
+            peerStripes.backoff *= 2;
+          }
+          continue;
+        }
+        if (++peerStripes.skipped < peerStripes.backoff) continue;
+        int size = stripes.size();
+        if (
+          size >= peerStripes.group.getMaxSize() ||
+          scheduler.getPendingCount() < (size + 1) * PIPELINE_WINDOW_SIZE
+        ) {
+          continue;
+        }
+        peerStripes.skipped = 0;
+        peerStripes.baselineThroughput = throughput;
+        growing.add(peerStripes);
+      }
+    }
+    // Connecting can take a while, so it is done without the monitor held
+    for (PeerStripes peerStripes : growing) {
+      Connection connection = peerStripes.group.grow();
+      if (connection == null) continue;
+      synchronized (stripesByPeer) {
+        if (peerStripes.stripes.isEmpty()) {
+          // The peer is done in the meantime
+          peerStripes.group.release(connection);
+          continue;
+        }
+        peerStripes.probing = true;
+        startStripe(peerStripes, connection, scheduler, pool);
+      }
+    }
+  }
+
+  private void stripeLeft(
+    Stripe stripe,
+    PeerStripes peerStripes,
+    BlockScheduler scheduler
+  ) {
+    boolean lastStripe;
+    synchronized (stripesByPeer) {
+      peerStripes.stripes.remove(stripe);
+      lastStripe = peerStripes.stripes.isEmpty();
+      // Extra connections are not reused, a stalled one may be broken
+      peerStripes.group.release(stripe.connection);
+      stripesByPeer.notifyAll();
+    }
+    if (lastStripe) scheduler.peerLeft(stripe.peerId);
+  }
+
+  private void processTasks(
+    Stripe stripe,
+    PeerStripes peerStripes,
+    BlockScheduler scheduler
+  ) {
+    NodeId peerId = stripe.peerId;
+    Connection connection = stripe.connection;
+    // Large blocks get a smaller window, bounding the bytes in flight
+    int maxWindowSize = (int) Math.max(
+      PIPELINE_MIN_WINDOW_SIZE,
+      Math.min(PIPELINE_MAX_WINDOW_SIZE, PIPELINE_MAX_BYTES / blockSize)
+    );
+    RequestWindow window = new RequestWindow(
+      Math.min(PIPELINE_WINDOW_SIZE, maxWindowSize),
+      PIPELINE_MIN_WINDOW_SIZE,
+      maxWindowSize
+    );
+    // Replies complete on the connection's reader thread and are handed
+    // back here, so the window is only touched by this worker
+    BlockingQueue<CompletableFuture<Object>> replies = new LinkedBlockingQueue<>();
+    // Reply -> request, to recognise duplicates cancelled by the scheduler
+    Map<CompletableFuture<Object>, FileBlockRequestMessage> sent = new HashMap<>();
+    // Shared by the stripes of the peer, which the tuner sizes by it
+    PeerStats stats = peerStats.get(peerId);
+    try {
+      while (true) {
+        // Fill the window, only blocking on the queue when nothing is in flight
+        while (!stripe.stopping && window.hasCapacity()) {
+          FileBlockRequestMessage request = window.isEmpty()
+            ? scheduler.next(peerId, TASK_QUEUE_TIMEOUT * 1000L)
+            : scheduler.poll(peerId);
+          if (request == null) break;
+          // Paced by the download limits before it is requested
+          bandwidthLimiter.acquireDownload(peerId, request.getLength());
+          window.add(request);
+          CompletableFuture<Object> reply = connection.request(request);
+          sent.put(reply, request);
+          scheduler.sent(request, peerId, reply);
+          reply.whenComplete((response, e) -> replies.add(reply));
+        }
+        if (window.isEmpty()) {
+          // A peer held back as too slow, or that failed every block left,
+          // keeps waiting for blocks until the download is done
+          if (stripe.stopping || scheduler.isDone()) break;
+          continue;
+        }
+
         Object response;
-        while ((response = connection.receive()) != null) {
-          if (response instanceof FileBlockAnswerMessage) {
-            synchronized (answers) {
-              answers.add((FileBlockAnswerMessage) response);
-            }
-            synchronized (numBlocksByPeer) {
-              numBlocksByPeer.put(
-                peerId,
-                numBlocksByPeer.getOrDefault(peerId, 0) + 1
-              );
-            }
+        try {
+          CompletableFuture<Object> reply = replies.poll(
+            BLOCK_REQUEST_TIMEOUT,
+            TimeUnit.MILLISECONDS
+          );
+          if (reply == null) {
+            // Its blocks are handed to the other peers
+            System.out.println("[ERROR] Peer stalled: " + peerId);
+            break;
           }
+          FileBlockRequestMessage sentRequest = sent.remove(reply);
+          if (reply.isCancelled()) {
+            // Another peer delivered this block first
+            window.cancel(sentRequest);
+            continue;
+          }
+          response = reply.join();
+        } catch (CompletionException e) {
+          System.out.println("[ERROR] Connection lost with peer: " + peerId);
           break;
         }
-      } catch (InterruptedException e) {
-        System.out.println("[ERROR] Interrupted: " + e.getMessage());
-        Thread.currentThread().interrupt();
-        break;
-      } catch (Exception e) {
-        System.out.println(
-          "[ERROR] Error during task processing: " + e.getMessage()
-        );
-      } finally {
-        if (request != null) {
-          writerLatch.countDown();
+        if (!(response instanceof FileBlockAnswerMessage)) {
+          System.out.println("[ERROR] Unexpected response: " + response);
+          continue;
+        }
+        FileBlockAnswerMessage answer = (FileBlockAnswerMessage) response;
+        FileBlockRequestMessage request = window.complete(answer);
+        if (request == null) {
+          System.out.println("[ERROR] Unrequested block: " + answer);
+          continue;
         }
+        metrics
+          .counter("peer_bytes_in_total", "peer", peerId.getId())
+          .add(request.getLength());
+        metrics
+          .histogram("block_request_latency_ms", "peer", peerId.getId())
+          .recordNanos(window.getLastRttNanos());
+        if (!verifyBlock(request, answer)) {
+          // Not counted down, the block is retried by another peer
+          System.out.println(
+            "[ERROR] Block " +
+            request.getIndex() +
+            " failed verification from peer: " +
+            peerId
+          );
+          stats.blockFailed();
+          metrics
+            .counter(
+              "block_verification_failures_total",
+              "peer",
+              peerId.getId()
+            )
+            .increment();
+          scheduler.retry(request, peerId);
+          continue;
+        }
+        if (!scheduler.complete(request, peerId)) continue;
+        if (writeBlock(request, answer)) {
+          bitfield.set(request.getIndex());
+          if (receivedBlocks.incrementAndGet() % BITFIELD_SAVE_INTERVAL == 0) {
+            saveProgress();
+          }
+          stats.blockReceived(
+            request.getLength(),
+            window.getSmoothedRttMillis()
+          );
+        }
+        writerLatch.countDown();
       }
+    } catch (InterruptedException e) {
+      System.out.println("[ERROR] Interrupted: " + e.getMessage());
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      System.out.println(
+        "[ERROR] Error during task processing: " + e.getMessage()
+      );
+    } finally {
+      // Hand unanswered requests back so other peers can serve them
+      scheduler.requeue(peerId, window.drain());
+      stripeLeft(stripe, peerStripes, scheduler);
     }
   }
 
@@ -200,16 +745,14 @@ public class DownloadTasksManager {
     StringBuilder message = new StringBuilder(
       "Download complete: " + filePath + "\n"
     );
-    synchronized (numBlocksByPeer) {
-      numBlocksByPeer.forEach((peerNodeId, count) -> {
-        message
-          .append("Provider ")
-          .append(peerNodeId)
-          .append(": ")
-          .append(count)
-          .append(" blocks\n");
-      });
-    }
+    peerStats.forEach((peerNodeId, stats) -> {
+      message
+        .append("Provider ")
+        .append(peerNodeId)
+        .append(": ")
+        .append(stats)
+        .append("\n");
+    });
     message.append("Time elapsed: ").append(timeSpent / 1000.0).append("s\n");
     Alert.showInfo(message.toString());
   }
@@ -4,6 +4,7 @@ import com.isctorrent.gui.Alert;
 import com.isctorrent.logic.messages.*;
 import com.isctorrent.logic.models.*;
 import com.isctorrent.util.Config;
+import com.isctorrent.util.ExecutorFactory;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
@@ -14,7 +15,6 @@ public class DownloadTasksManagerWithLocks {
 
   private static final int TASK_QUEUE_TIMEOUT = 5; // seconds
   private static final int POOL_TERMINATION_TIMEOUT = 60; // seconds
-  private static final long BLOCK_SIZE = Config.BLOCK_SIZE;
   private final String fileName;
   private final WorkFolder workFolder;
   private List<FileBlockRequestMessage> requests;
@@ -58,12 +58,13 @@ public class DownloadTasksManagerWithLocks {
 
   public List<FileBlockRequestMessage> createRequestList(
     String fileHash,
-    long fileSize
+    long fileSize,
+    int blockSize
   ) {
     List<FileBlockRequestMessage> requests = new ArrayList<>();
-    for (long offset = 0; offset < fileSize; offset += BLOCK_SIZE) {
-      int currentBlockSize = (int) Math.min(BLOCK_SIZE, fileSize - offset);
-      int blockIndex = (int) (offset / BLOCK_SIZE);
+    for (long offset = 0; offset < fileSize; offset += blockSize) {
+      int currentBlockSize = (int) Math.min(blockSize, fileSize - offset);
+      int blockIndex = (int) (offset / blockSize);
       FileBlockRequestMessage request = new FileBlockRequestMessage(
         fileHash,
         offset,
@@ -104,14 +105,15 @@ public class DownloadTasksManagerWithLocks {
   ) {
     String fileHash = results.get(0).getFileHash();
     long fileSize = results.get(0).getFileSize();
-    return createRequestList(fileHash, fileSize);
+    int blockSize = results.get(0).getBlockSize();
+    return createRequestList(fileHash, fileSize, blockSize);
   }
 
   private void startWriterThread(
     List<FileBlockRequestMessage> requests,
     long startTime
   ) {
-    new Thread(() -> {
+    ExecutorFactory.startThread(() -> {
       writerLock.lock();
       try {
         while (pendingTasks > 0) {
@@ -148,8 +150,7 @@ public class DownloadTasksManagerWithLocks {
       } finally {
         answersLock.unlock();
       }
-    })
-      .start();
+    });
   }
 
   private void dispatchTasks(
@@ -162,7 +163,9 @@ public class DownloadTasksManagerWithLocks {
     );
 
     List<NodeId> peerIds = getPeerIdsWithFile(results);
-    ExecutorService pool = Executors.newFixedThreadPool(peerIds.size());
+    ExecutorService pool = ExecutorFactory.newFixedThreadPool(
+      peerIds.size()
+    );
 
     for (NodeId peerId : peerIds) {
       pool.submit(() -> processTasks(peerId, connections.get(peerId), taskQueue)
@@ -190,28 +193,24 @@ public class DownloadTasksManagerWithLocks {
       try {
         request = taskQueue.poll(TASK_QUEUE_TIMEOUT, TimeUnit.SECONDS);
         if (request == null) break;
-        connection.send(request);
-        Object response;
-        while ((response = connection.receive()) != null) {
-          if (response instanceof FileBlockAnswerMessage) {
-            answersLock.lock();
-            try {
-              answers.add((FileBlockAnswerMessage) response);
-            } finally {
-              answersLock.unlock();
-            }
+        Object response = connection.request(request).get();
+        if (response instanceof FileBlockAnswerMessage) {
+          answersLock.lock();
+          try {
+            answers.add((FileBlockAnswerMessage) response);
+          } finally {
+            answersLock.unlock();
+          }
 
-            numBlocksByPeerLock.lock();
-            try {
-              numBlocksByPeer.put(
-                peerId,
-                numBlocksByPeer.getOrDefault(peerId, 0) + 1
-              );
-            } finally {
-              numBlocksByPeerLock.unlock();
-            }
+          numBlocksByPeerLock.lock();
+          try {
+            numBlocksByPeer.put(
+              peerId,
+              numBlocksByPeer.getOrDefault(peerId, 0) + 1
+            );
+          } finally {
+            numBlocksByPeerLock.unlock();
           }
-          break;
         }
       } catch (InterruptedException e) {
         System.out.println("[ERROR] Interrupted: " + e.getMessage());
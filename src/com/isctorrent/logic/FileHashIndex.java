@@ -0,0 +1,199 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileMetadata;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Hashes of the shared files, persisted so unchanged files are not re-hashed
+// on startup. Entries are keyed by path and trusted while size and
+// modification time are unchanged.
+class FileHashIndex {
+
+  private static final int MAGIC = 0x49534849; // "ISHI"
+  private static final int FORMAT_VERSION = 2;
+  private final Path path;
+  // Path -> entry
+  private final Map<String, Entry> entries;
+  private boolean dirty;
+
+  private static class Entry {
+
+    final long size;
+    final long lastModified;
+    final int blockSize;
+    final String fileHash;
+    final String merkleRoot;
+    final List<byte[]> blockHashes;
+
+    Entry(
+      long size,
+      long lastModified,
+      int blockSize,
+      String fileHash,
+      String merkleRoot,
+      List<byte[]> blockHashes
+    ) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.blockSize = blockSize;
+      this.fileHash = fileHash;
+      this.merkleRoot = merkleRoot;
+      this.blockHashes = blockHashes;
+    }
+  }
+
+  private FileHashIndex(Path path) {
+    this.path = path;
+    this.entries = new HashMap<>();
+  }
+
+  // Returns an empty index if there is none on disk or it cannot be read
+  public static FileHashIndex load(Path path) {
+    FileHashIndex index = new FileHashIndex(path);
+    if (!Files.exists(path)) return index;
+    try (
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(path))
+      )
+    ) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        System.out.println("[INFO] Discarding stale hash index: " + path);
+        return index;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String filePath = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        int blockSize = in.readInt();
+        String fileHash = in.readUTF();
+        String merkleRoot = in.readUTF();
+        int blockCount = in.readInt();
+        // A corrupt count must not size the list, and is discarded as below
+        if (
+          size < 0 ||
+          blockSize <= 0 ||
+          blockCount != (size + blockSize - 1) / blockSize
+        ) {
+          throw new IOException("Corrupt entry: " + filePath);
+        }
+        List<byte[]> blockHashes = new ArrayList<>(blockCount);
+        for (int j = 0; j < blockCount; j++) {
+          byte[] blockHash = new byte[in.readUnsignedByte()];
+          in.readFully(blockHash);
+          blockHashes.add(blockHash);
+        }
+        index.entries.put(
+          filePath,
+          new Entry(
+            size,
+            lastModified,
+            blockSize,
+            fileHash,
+            merkleRoot,
+            Collections.unmodifiableList(blockHashes)
+          )
+        );
+      }
+    } catch (IOException e) {
+      System.out.println("[ERROR] Failed to read hash index: " + path);
+      index.entries.clear();
+    }
+    return index;
+  }
+
+  // Returns null when the file is not indexed, changed since, or would now
+  // be split into blocks of a different size
+  public synchronized FileMetadata get(File file) {
+    Entry entry = entries.get(file.getAbsolutePath());
+    if (
+      entry == null ||
+      entry.size != file.length() ||
+      entry.lastModified != file.lastModified() ||
+      entry.blockSize != FileMetadata.blockSizeFor(entry.size)
+    ) {
+      return null;
+    }
+    return new FileMetadata(
+      file,
+      entry.size,
+      entry.lastModified,
+      entry.fileHash,
+      entry.merkleRoot,
+      entry.blockHashes
+    );
+  }
+
+  public synchronized void put(FileMetadata metadata) {
+    entries.put(
+      metadata.getFile().getAbsolutePath(),
+      new Entry(
+        metadata.getFileSize(),
+        metadata.getLastModified(),
+        metadata.getBlockSize(),
+        metadata.getFileHash(),
+        metadata.getMerkleRoot(),
+        metadata.getBlockHashes()
+      )
+    );
+    dirty = true;
+  }
+
+  public synchronized void remove(File file) {
+    if (entries.remove(file.getAbsolutePath()) != null) dirty = true;
+  }
+
+  public synchronized void retainAll(Collection<File> files) {
+    Set<String> paths = new HashSet<>();
+    for (File file : files) paths.add(file.getAbsolutePath());
+    if (entries.keySet().retainAll(paths)) dirty = true;
+  }
+
+  // Written to a temporary file first, so a crash never leaves it truncated
+  public synchronized void save() {
+    if (!dirty) return;
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (
+        DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp))
+        )
+      ) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          out.writeUTF(mapEntry.getKey());
+          out.writeLong(entry.size);
+          out.writeLong(entry.lastModified);
+          out.writeInt(entry.blockSize);
+          out.writeUTF(entry.fileHash);
+          out.writeUTF(entry.merkleRoot);
+          out.writeInt(entry.blockHashes.size());
+          for (byte[] blockHash : entry.blockHashes) {
+            out.writeByte(blockHash.length);
+            out.write(blockHash);
+          }
+        }
+      }
+      try {
+        Files.move(
+          temp,
+          path,
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING
+        );
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      dirty = false;
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to save hash index: " + path);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileMetadata;
+import com.isctorrent.util.ExecutorFactory;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+// Hashes files in the background on a bounded pool and hands each one over
+// as soon as it is done. Progress is counted per batch, a batch being the
+// files submitted while the indexer was busy.
+public class FileIndexer {
+
+  private final ExecutorService pool;
+  private final Runnable onIdle;
+  // Absolute paths queued or being hashed
+  private final Set<String> inFlight;
+  // Paths that changed again while being hashed
+  private final Set<String> resubmitted;
+  private int pendingFiles;
+  private int queuedFiles;
+  private int hashedFiles;
+  private long queuedBytes;
+  private long hashedBytes;
+  private long batchStartTime;
+  private long batchEndTime;
+
+  public FileIndexer(int nThreads, Runnable onIdle) {
+    this.pool = ExecutorFactory.newFixedDaemonThreadPool(nThreads);
+    this.onIdle = onIdle;
+    this.inFlight = new HashSet<>();
+    this.resubmitted = new HashSet<>();
+  }
+
+  // A file that is already queued is hashed once more after it finishes,
+  // and false is returned
+  public synchronized boolean submit(
+    File file,
+    Consumer<FileMetadata> onHashed
+  ) {
+    String path = file.getAbsolutePath();
+    if (!inFlight.add(path)) {
+      resubmitted.add(path);
+      return false;
+    }
+    if (pendingFiles == 0) {
+      queuedFiles = 0;
+      hashedFiles = 0;
+      queuedBytes = 0;
+      hashedBytes = 0;
+      batchStartTime = System.currentTimeMillis();
+    }
+    long size = file.length();
+    pendingFiles++;
+    queuedFiles++;
+    queuedBytes += size;
+    pool.execute(() -> {
+      try {
+        onHashed.accept(new FileMetadata(file));
+      } catch (RuntimeException e) {
+        System.out.println("[ERROR] Failed to hash file: " + file.getName());
+      } finally {
+        finished(file, size, onHashed);
+      }
+    });
+    return true;
+  }
+
+  private void finished(
+    File file,
+    long size,
+    Consumer<FileMetadata> onHashed
+  ) {
+    boolean idle;
+    synchronized (this) {
+      String path = file.getAbsolutePath();
+      inFlight.remove(path);
+      if (resubmitted.remove(path)) submit(file, onHashed);
+      hashedFiles++;
+      hashedBytes += size;
+      idle = --pendingFiles == 0;
+      if (idle) {
+        batchEndTime = System.currentTimeMillis();
+        System.out.println("[INFO] " + this);
+        notifyAll();
+      }
+    }
+    if (idle) onIdle.run();
+  }
+
+  public synchronized void awaitIdle() throws InterruptedException {
+    while (pendingFiles > 0) wait();
+  }
+
+  public synchronized boolean isIdle() {
+    return pendingFiles == 0;
+  }
+
+  public synchronized int getQueuedFiles() {
+    return queuedFiles;
+  }
+
+  public synchronized int getHashedFiles() {
+    return hashedFiles;
+  }
+
+  public synchronized long getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  public synchronized long getHashedBytes() {
+    return hashedBytes;
+  }
+
+  // Bytes per second hashed in the current or last batch
+  public synchronized double getThroughput() {
+    long end = pendingFiles > 0 ? System.currentTimeMillis() : batchEndTime;
+    long elapsed = end - batchStartTime;
+    return elapsed > 0 ? hashedBytes * 1000.0 / elapsed : 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+      "Indexed %d/%d files (%d/%d MB, %.1f MB/s)",
+      hashedFiles,
+      queuedFiles,
+      hashedBytes >> 20,
+      queuedBytes >> 20,
+      getThroughput() / (1 << 20)
+    );
+  }
+}
@@ -0,0 +1,85 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileMetadata;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Case-insensitive substring search over file names. Each name is indexed
+// under its trigrams, and a query only checks the files holding its rarest
+// trigram. Searches take no locks; updates are serialized among themselves.
+class FileNameIndex {
+
+  private static final int GRAM_LENGTH = 3;
+
+  private static class Entry {
+
+    final FileMetadata fileMetadata;
+    final String lowerCaseName;
+
+    Entry(FileMetadata fileMetadata) {
+      this.fileMetadata = fileMetadata;
+      this.lowerCaseName = fileMetadata.getFileName().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  // Hash -> entry
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  // Trigram -> hashes of the files whose name contains it
+  private final Map<String, Set<String>> hashesByGram = new ConcurrentHashMap<>();
+
+  public synchronized void put(FileMetadata fileMetadata) {
+    String hash = fileMetadata.getFileHash();
+    remove(hash);
+    Entry entry = new Entry(fileMetadata);
+    for (String gram : grams(entry.lowerCaseName)) {
+      hashesByGram
+        .computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet())
+        .add(hash);
+    }
+    entries.put(hash, entry);
+  }
+
+  public synchronized void remove(String hash) {
+    Entry entry = entries.remove(hash);
+    if (entry == null) return;
+    for (String gram : grams(entry.lowerCaseName)) {
+      Set<String> hashes = hashesByGram.get(gram);
+      if (hashes == null) continue;
+      hashes.remove(hash);
+      if (hashes.isEmpty()) hashesByGram.remove(gram);
+    }
+  }
+
+  public List<FileMetadata> search(String keyword) {
+    String needle = keyword.toLowerCase(Locale.ROOT);
+    Collection<String> candidates = entries.keySet();
+    // Queries shorter than a trigram fall back to checking every file
+    if (needle.length() >= GRAM_LENGTH) {
+      for (String gram : grams(needle)) {
+        Set<String> hashes = hashesByGram.get(gram);
+        if (hashes == null) return new ArrayList<>();
+        if (hashes.size() < candidates.size()) candidates = hashes;
+      }
+    }
+    List<FileMetadata> result = new ArrayList<>();
+    for (String hash : candidates) {
+      Entry entry = entries.get(hash);
+      if (entry != null && entry.lowerCaseName.contains(needle)) {
+        result.add(entry.fileMetadata);
+      }
+    }
+    return result;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  private static Set<String> grams(String text) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+      grams.add(text.substring(i, i + GRAM_LENGTH));
+    }
+    return grams;
+  }
+}
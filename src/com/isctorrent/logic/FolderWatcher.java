@@ -0,0 +1,154 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.util.ExecutorFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Watches a folder and reports files once they have stopped changing, so a
+// file still being copied in is handled once instead of on every write
+class FolderWatcher {
+
+  public interface Listener {
+    void fileChanged(File file);
+
+    void fileDeleted(File file);
+
+    // Events were lost, the whole folder has to be rescanned
+    void overflow();
+  }
+
+  private static class PendingFile {
+
+    long lastEventTime;
+    long size;
+    long lastModified;
+  }
+
+  private final Path folder;
+  private final long debounceMillis;
+  private final Listener listener;
+  // Path -> state at its last event
+  private final Map<Path, PendingFile> pendingFiles;
+  private WatchService watchService;
+  private ScheduledExecutorService scheduler;
+
+  public FolderWatcher(Path folder, long debounceMillis, Listener listener) {
+    this.folder = folder;
+    this.debounceMillis = debounceMillis;
+    this.listener = listener;
+    this.pendingFiles = new HashMap<>();
+  }
+
+  public void start() throws IOException {
+    watchService = folder.getFileSystem().newWatchService();
+    folder.register(
+      watchService,
+      StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_MODIFY,
+      StandardWatchEventKinds.ENTRY_DELETE
+    );
+    scheduler = ExecutorFactory.newSingleThreadScheduledExecutor();
+    long period = Math.max(1, debounceMillis / 2);
+    scheduler.scheduleWithFixedDelay(
+      this::flushPendingFiles,
+      period,
+      period,
+      TimeUnit.MILLISECONDS
+    );
+    ExecutorFactory.startDaemonThread(this::watchLoop);
+  }
+
+  public void stop() {
+    try {
+      if (watchService != null) watchService.close();
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to close watcher: " + folder);
+    }
+    if (scheduler != null) scheduler.shutdownNow();
+  }
+
+  private void watchLoop() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          synchronized (pendingFiles) {
+            pendingFiles.clear();
+          }
+          listener.overflow();
+          continue;
+        }
+        Path path = folder.resolve((Path) event.context());
+        synchronized (pendingFiles) {
+          PendingFile pending = pendingFiles.computeIfAbsent(
+            path,
+            p -> new PendingFile()
+          );
+          pending.lastEventTime = System.currentTimeMillis();
+        }
+      }
+      if (!key.reset()) {
+        System.out.println(
+          "[ERROR] The directory is no longer watched: " + folder
+        );
+        return;
+      }
+    }
+  }
+
+  // A file is reported once no events arrived for it during the debounce
+  // interval and its size and modification time held still since the last
+  // check. Copies that do not raise events while writing are caught by the
+  // latter.
+  private void flushPendingFiles() {
+    Map<Path, Boolean> ready = new HashMap<>();
+    long now = System.currentTimeMillis();
+    synchronized (pendingFiles) {
+      Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles
+        .entrySet()
+        .iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Path, PendingFile> entry = iterator.next();
+        PendingFile pending = entry.getValue();
+        File file = entry.getKey().toFile();
+        if (!file.exists()) {
+          iterator.remove();
+          ready.put(entry.getKey(), false);
+          continue;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        boolean stable =
+          size == pending.size && lastModified == pending.lastModified;
+        pending.size = size;
+        pending.lastModified = lastModified;
+        if (stable && now - pending.lastEventTime >= debounceMillis) {
+          iterator.remove();
+          ready.put(entry.getKey(), true);
+        }
+      }
+    }
+    ready.forEach((path, exists) -> {
+      try {
+        if (exists) {
+          listener.fileChanged(path.toFile());
+        } else {
+          listener.fileDeleted(path.toFile());
+        }
+      } catch (RuntimeException e) {
+        System.out.println("[ERROR] Failed to update file: " + path);
+      }
+    });
+  }
+}
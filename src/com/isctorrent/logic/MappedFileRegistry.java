@@ -0,0 +1,136 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.models.FileBlock;
+import com.isctorrent.util.ExecutorFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Lazily maps shared files and hands out slices of the mappings, leaving the
+// caching of file data to the OS page cache
+class MappedFileRegistry {
+
+  // A single MappedByteBuffer is limited to 2 GB, so files are mapped in
+  // segments that overlap by the largest block that can be sliced from them
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final long SEGMENT_OVERLAP = 64L * 1024 * 1024;
+  private final long idleTimeoutMillis;
+  // Hash -> mapping
+  private final Map<String, MappedFile> mappedFiles = new HashMap<>();
+  private final ScheduledExecutorService sweeper;
+
+  private static class MappedFile {
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private int refCount = 0;
+    private long lastAccess = System.currentTimeMillis();
+
+    private MappedFile(File file) throws IOException {
+      try (
+        FileChannel channel = FileChannel.open(
+          file.toPath(),
+          StandardOpenOption.READ
+        )
+      ) {
+        size = channel.size();
+        int count = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+          long position = i * SEGMENT_SIZE;
+          long length = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - position);
+          segments[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+      }
+    }
+  }
+
+  public MappedFileRegistry(long idleTimeoutMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.sweeper = ExecutorFactory.newSingleThreadScheduledExecutor();
+    sweeper.scheduleWithFixedDelay(
+      this::unmapIdle,
+      idleTimeoutMillis,
+      idleTimeoutMillis,
+      TimeUnit.MILLISECONDS
+    );
+  }
+
+  // Every successful slice must be followed by a release of the same hash
+  public FileBlock slice(String hash, File file, long offset, long length) {
+    MappedFile mappedFile;
+    synchronized (mappedFiles) {
+      mappedFile = mappedFiles.get(hash);
+      if (mappedFile == null) {
+        try {
+          mappedFile = new MappedFile(file);
+        } catch (IOException e) {
+          System.out.println("[ERROR] Failed to map file: " + file.getName());
+          return null;
+        }
+        mappedFiles.put(hash, mappedFile);
+      }
+      if (offset < 0 || offset >= mappedFile.size) {
+        System.out.println("[ERROR] Offset out of range: " + offset);
+        return null;
+      }
+      length = Math.min(length, mappedFile.size - offset);
+      if (length > SEGMENT_OVERLAP) return null;
+      mappedFile.refCount++;
+      mappedFile.lastAccess = System.currentTimeMillis();
+    }
+    MappedByteBuffer segment = mappedFile.segments[(int) (offset / SEGMENT_SIZE)];
+    int position = (int) (offset % SEGMENT_SIZE);
+    return new FileBlock(
+      offset,
+      segment.slice(position, (int) length).asReadOnlyBuffer()
+    );
+  }
+
+  public void release(String hash) {
+    synchronized (mappedFiles) {
+      MappedFile mappedFile = mappedFiles.get(hash);
+      if (mappedFile != null && mappedFile.refCount > 0) {
+        mappedFile.refCount--;
+      }
+    }
+  }
+
+  public void invalidate(String hash) {
+    synchronized (mappedFiles) {
+      mappedFiles.remove(hash);
+    }
+  }
+
+  public int getMappedFileCount() {
+    synchronized (mappedFiles) {
+      return mappedFiles.size();
+    }
+  }
+
+  // Java has no explicit unmap: dropping the last reference to the buffers
+  // lets the garbage collector release the mapping
+  private void unmapIdle() {
+    long now = System.currentTimeMillis();
+    synchronized (mappedFiles) {
+      Iterator<MappedFile> iterator = mappedFiles.values().iterator();
+      while (iterator.hasNext()) {
+        MappedFile mappedFile = iterator.next();
+        if (
+          mappedFile.refCount == 0 &&
+          now - mappedFile.lastAccess >= idleTimeoutMillis
+        ) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
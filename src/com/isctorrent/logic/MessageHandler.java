@@ -0,0 +1,243 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import com.isctorrent.logic.models.*;
+import com.isctorrent.util.BlockCompression;
+import com.isctorrent.util.Config;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Request handling shared by the blocking and the selector-based servers
+class MessageHandler {
+
+  private static final boolean ZERO_COPY_SERVING = Config.ZERO_COPY_SERVING;
+  private static final int MAX_BLOCK_SIZE = Config.MAX_BLOCK_SIZE;
+  private static final boolean COMPRESSION = Config.COMPRESSION;
+  private static final double COMPRESSION_MAX_RATIO =
+    Config.COMPRESSION_MAX_RATIO;
+  private final Node node;
+
+  public MessageHandler(Node node) {
+    this.node = node;
+  }
+
+  public void handle(ReplyChannel channel, CorrelatedMessage message) {
+    long correlationId = message.getCorrelationId();
+    Object payload = message.getPayload();
+    if (payload instanceof NewConnectionRequest) {
+      handleNewConnectionRequest(
+        channel,
+        correlationId,
+        (NewConnectionRequest) payload
+      );
+    } else if (payload instanceof WordSearchMessage) {
+      handleWordSearchMessage(
+        channel,
+        correlationId,
+        (WordSearchMessage) payload
+      );
+    } else if (payload instanceof FileBlockRequestMessage) {
+      handleFileBlockRequest(
+        channel,
+        correlationId,
+        (FileBlockRequestMessage) payload
+      );
+    } else if (payload instanceof BlockHashesRequestMessage) {
+      handleBlockHashesRequest(
+        channel,
+        correlationId,
+        (BlockHashesRequestMessage) payload
+      );
+    } else {
+      System.out.println("[ERROR] Unrecognized object received: " + payload);
+    }
+  }
+
+  // Any range of up to a block may be asked for, so a block can also be
+  // fetched as several smaller sub-block requests. Checked before a request
+  // is queued for upload, as the upload scheduler charges peers by length.
+  static boolean isValidLength(FileBlockRequestMessage request) {
+    if (request.getLength() > 0 && request.getLength() <= MAX_BLOCK_SIZE) {
+      return true;
+    }
+    System.out.println("[ERROR] Invalid block length: " + request);
+    return false;
+  }
+
+  public void handleFileBlockRequest(
+    ReplyChannel channel,
+    long correlationId,
+    FileBlockRequestMessage request
+  ) {
+    if (!isValidLength(request)) return;
+    try {
+      WorkFolder workFolder = node.getWorkFolder();
+      boolean compress =
+        channel.isCompressionEnabled() &&
+        workFolder.isCompressible(request.getHash());
+      if (!compress && ZERO_COPY_SERVING && channel.supportsFileRegions()) {
+        FileChannel file = workFolder.acquireFileChannel(request.getHash());
+        if (file == null) return;
+        Runnable release = () ->
+          workFolder.releaseFileChannel(request.getHash(), file);
+        boolean handedOver = false;
+        try {
+          throttle(channel, request.getLength());
+          handedOver = true;
+          channel.replyWithFileRegion(correlationId, request, file, release);
+        } finally {
+          // The reply releases the channel once it is done with it
+          if (!handedOver) release.run();
+        }
+        return;
+      }
+      FileBlock block = workFolder.getFileBlock(request);
+      if (block == null) return;
+      boolean handedOver = false;
+      try {
+        if (compress) {
+          byte[] compressed = BlockCompression.compress(
+            block.getBuffer(),
+            COMPRESSION_MAX_RATIO
+          );
+          if (compressed != null) {
+            throttle(channel, compressed.length);
+            channel.reply(
+              correlationId,
+              new FileBlockAnswerMessage(
+                request.getHash(),
+                request.getOffset(),
+                request.getLength(),
+                request.getIndex(),
+                compressed,
+                true
+              )
+            );
+            return;
+          }
+        }
+        throttle(channel, block.getLength());
+        if (block.isMapped() && channel.supportsFileRegions()) {
+          // The write may finish after this returns, so the reply releases
+          // the mapping instead
+          handedOver = true;
+          channel.replyWithBuffer(
+            correlationId,
+            request,
+            block.getBuffer(),
+            () -> workFolder.releaseFileBlock(request.getHash())
+          );
+          return;
+        }
+        FileBlockAnswerMessage answer = new FileBlockAnswerMessage(
+          request.getHash(),
+          request.getOffset(),
+          request.getLength(),
+          request.getIndex(),
+          block.getData()
+        );
+        channel.reply(correlationId, answer);
+      } finally {
+        if (block.isMapped() && !handedOver) {
+          workFolder.releaseFileBlock(request.getHash());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      System.out.println("[ERROR] Error processing file block request: " + e);
+    }
+  }
+
+  // Waits for the upload rate limits, counting the bytes actually sent
+  private void throttle(ReplyChannel channel, long bytes)
+    throws InterruptedException {
+    NodeId peerId = channel.getPeerId();
+    node.getBandwidthLimiter().acquireUpload(peerId, bytes);
+    node
+      .getMetrics()
+      .counter(
+        "peer_bytes_out_total",
+        "peer",
+        peerId != null ? peerId.getId() : "unknown"
+      )
+      .add(bytes);
+  }
+
+  public void handleBlockHashesRequest(
+    ReplyChannel channel,
+    long correlationId,
+    BlockHashesRequestMessage request
+  ) {
+    FileMetadata metadata = node
+      .getWorkFolder()
+      .getFileMetadata(request.getHash());
+    if (metadata == null) {
+      System.out.println("[ERROR] File not found: " + request.getHash());
+      return;
+    }
+    channel.reply(
+      correlationId,
+      new BlockHashesAnswerMessage(
+        request.getHash(),
+        metadata.getBlockHashes()
+      )
+    );
+  }
+
+  public void handleNewConnectionRequest(
+    ReplyChannel channel,
+    long correlationId,
+    NewConnectionRequest request
+  ) {
+    String hostName = request.getHostName();
+    int port = request.getPort();
+    Node peer = new Node(hostName, port);
+    // Data connections join a peer that is already connected both ways
+    if (!request.isDataConnection()) node.addPeer(peer);
+    int protocolVersion = WireProtocol.negotiate(request.getProtocolVersion());
+    // Compressed answers need the binary encoding to be flagged
+    boolean compression =
+      COMPRESSION &&
+      request.isCompression() &&
+      protocolVersion == WireProtocol.VERSION_BINARY;
+    NewConnectionRequestAck ack = new NewConnectionRequestAck(
+      peer.getNodeId(),
+      protocolVersion,
+      compression
+    );
+    // The ack still goes out in the old encoding, everything after in the new
+    channel.reply(correlationId, ack);
+    channel.setProtocolVersion(protocolVersion);
+    channel.setCompressionEnabled(compression);
+    channel.setPeerId(peer.getNodeId());
+  }
+
+  public void handleWordSearchMessage(
+    ReplyChannel channel,
+    long correlationId,
+    WordSearchMessage message
+  ) {
+    WorkFolder workFolder = node.getWorkFolder();
+    List<FileMetadata> fileMetadata = workFolder.searchFilesByKeyword(
+      message.getWord()
+    );
+    List<FileSearchResult> results = fileMetadata
+      .stream()
+      .map(metadata ->
+        new FileSearchResult(
+          message,
+          metadata.getFileName(),
+          metadata.getFileSize(),
+          metadata.getFileHash(),
+          metadata.getMerkleRoot(),
+          metadata.getBlockSize(),
+          node.getHostName(),
+          node.getPort()
+        )
+      )
+      .collect(Collectors.toList());
+    channel.reply(correlationId, results);
+  }
+}
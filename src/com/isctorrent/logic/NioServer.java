@@ -0,0 +1,524 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.Config;
+import com.isctorrent.util.ExecutorFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking server: a few selector threads own all peer sockets and hand
+// decoded requests to a worker pool shared by every connection. Block
+// requests go to the node's upload scheduler instead, and a connection whose
+// peer has a full upload queue is not read until it drains. An upload keeps
+// its slot while the connection has too many reply bytes waiting for the
+// peer to read, so a peer that stops reading stops being served.
+class NioServer {
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final long WRITE_HIGH_WATER = Config.NIO_WRITE_HIGH_WATER;
+  private static final long WRITE_LIMIT = Config.NIO_WRITE_LIMIT;
+  private final int port;
+  private final MessageHandler handler;
+  private final IoLoop[] ioLoops;
+  private final ExecutorService workers;
+  private final UploadScheduler uploadScheduler;
+  private ServerSocketChannel serverChannel;
+
+  public NioServer(Node node, int port, int ioThreads, int workerThreads)
+    throws IOException {
+    this.port = port;
+    this.handler = new MessageHandler(node);
+    this.uploadScheduler = node.getUploadScheduler();
+    this.ioLoops = new IoLoop[Math.max(1, ioThreads)];
+    for (int i = 0; i < ioLoops.length; i++) {
+      ioLoops[i] = new IoLoop();
+    }
+    this.workers =
+      ExecutorFactory.newFixedThreadPool(Math.max(1, workerThreads));
+  }
+
+  // Accepts connections until the server is closed
+  public void start() throws IOException {
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    for (IoLoop ioLoop : ioLoops) {
+      ExecutorFactory.startThread(ioLoop);
+    }
+    int next = 0;
+    try {
+      while (serverChannel.isOpen()) {
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        ioLoops[next++ % ioLoops.length].register(channel);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  public boolean isClosed() {
+    return serverChannel == null || !serverChannel.isOpen();
+  }
+
+  public void close() {
+    try {
+      if (serverChannel != null) serverChannel.close();
+      for (IoLoop ioLoop : ioLoops) {
+        ioLoop.selector.close();
+      }
+    } catch (IOException e) {
+      System.err.println("[ERROR] Error closing server: " + e.getMessage());
+    }
+    workers.shutdownNow();
+  }
+
+  private class IoLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    // Paused connections whose upload queue has room again
+    private final Queue<NioConnection> resumptions = new ConcurrentLinkedQueue<>();
+
+    private IoLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    private void register(SocketChannel channel) {
+      registrations.add(channel);
+      selector.wakeup();
+    }
+
+    private void resume(NioConnection connection) {
+      resumptions.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select();
+          SocketChannel channel;
+          while ((channel = registrations.poll()) != null) {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new NioConnection(channel, key, this));
+          }
+          NioConnection resumed;
+          while ((resumed = resumptions.poll()) != null) {
+            try {
+              resumed.resume();
+            } catch (IOException | CancelledKeyException e) {
+              resumed.close();
+            }
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+              if (key.isReadable()) connection.read();
+              if (key.isValid() && key.isWritable()) connection.flush();
+            } catch (IOException | CancelledKeyException e) {
+              connection.close();
+            }
+          }
+        } catch (ClosedSelectorException e) {
+          return;
+        } catch (IOException e) {
+          System.err.println("[ERROR] Selector error: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static class FileRegion {
+
+    private final ByteBuffer header;
+    private final FileChannel file;
+    // Hands the file back once the region is written or dropped
+    private final Runnable release;
+    private long position;
+    private long remaining;
+
+    private long remaining() {
+      return header.remaining() + remaining;
+    }
+
+    private FileRegion(
+      ByteBuffer header,
+      FileChannel file,
+      Runnable release,
+      long position,
+      long remaining
+    ) {
+      this.header = header;
+      this.file = file;
+      this.release = release;
+      this.position = position;
+      this.remaining = remaining;
+    }
+
+    // Returns false when the socket cannot take more for now
+    private boolean writeTo(SocketChannel channel) throws IOException {
+      if (header.hasRemaining()) {
+        channel.write(header);
+        if (header.hasRemaining()) return false;
+      }
+      while (remaining > 0) {
+        long transferred = file.transferTo(position, remaining, channel);
+        if (transferred == 0) {
+          if (position >= file.size()) {
+            throw new IOException("File truncated during transfer");
+          }
+          return false;
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+      return true;
+    }
+  }
+
+  // A reply whose data is borrowed, typically a slice of a mapped file
+  private static class BufferRegion {
+
+    private final ByteBuffer[] buffers;
+    // Hands the data back once the reply is written or dropped
+    private final Runnable release;
+
+    private BufferRegion(ByteBuffer header, ByteBuffer data, Runnable release) {
+      this.buffers = new ByteBuffer[] { header, data };
+      this.release = release;
+    }
+
+    private long remaining() {
+      return buffers[0].remaining() + buffers[1].remaining();
+    }
+
+    // Returns false when the socket cannot take more for now
+    private boolean writeTo(SocketChannel channel) throws IOException {
+      channel.write(buffers);
+      return !buffers[1].hasRemaining();
+    }
+  }
+
+  private class NioConnection implements ReplyChannel {
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final IoLoop ioLoop;
+    // Block request refused by a full upload queue, retried on resume
+    private CorrelatedMessage pausedRequest;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Whole frames (ByteBuffer, BufferRegion or FileRegion), written by the
+    // selector thread
+    private final Queue<Object> writeQueue = new ConcurrentLinkedQueue<>();
+    // Bytes of the queued frames not written yet
+    private final AtomicLong pendingWriteBytes = new AtomicLong();
+    private volatile int protocolVersion = WireProtocol.VERSION_SERIALIZED;
+    private volatile boolean compressionEnabled;
+    private volatile NodeId peerId;
+
+    private NioConnection(
+      SocketChannel channel,
+      SelectionKey key,
+      IoLoop ioLoop
+    ) {
+      this.channel = channel;
+      this.key = key;
+      this.ioLoop = ioLoop;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+      return protocolVersion;
+    }
+
+    @Override
+    public void setProtocolVersion(int protocolVersion) {
+      this.protocolVersion = protocolVersion;
+    }
+
+    @Override
+    public boolean isCompressionEnabled() {
+      return compressionEnabled;
+    }
+
+    @Override
+    public void setCompressionEnabled(boolean compressionEnabled) {
+      this.compressionEnabled = compressionEnabled;
+    }
+
+    @Override
+    public NodeId getPeerId() {
+      return peerId;
+    }
+
+    @Override
+    public void setPeerId(NodeId peerId) {
+      this.peerId = peerId;
+    }
+
+    @Override
+    public boolean supportsFileRegions() {
+      return protocolVersion == WireProtocol.VERSION_BINARY;
+    }
+
+    @Override
+    public void reply(long correlationId, Object message) {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WireProtocol.writeFrame(out, protocolVersion, correlationId, message);
+        out.flush();
+        enqueue(ByteBuffer.wrap(bytes.toByteArray()));
+      } catch (IOException e) {
+        System.err.println("[ERROR] Failed to send: " + message);
+      }
+    }
+
+    @Override
+    public boolean replyWithFileRegion(
+      long correlationId,
+      FileBlockRequestMessage request,
+      FileChannel file,
+      Runnable release
+    ) {
+      try {
+        long position = request.getOffset();
+        long count = Math.min(request.getLength(), file.size() - position);
+        if (position < 0 || count <= 0) {
+          release.run();
+          return false;
+        }
+        ByteBuffer header = ByteBuffer.wrap(
+          WireProtocol.encodeFileBlockAnswerHeader(
+            correlationId,
+            request,
+            (int) count
+          )
+        );
+        enqueue(new FileRegion(header, file, release, position, count));
+        return true;
+      } catch (IOException e) {
+        System.err.println("[ERROR] Failed to send region: " + request);
+        release.run();
+        return false;
+      }
+    }
+
+    @Override
+    public boolean replyWithBuffer(
+      long correlationId,
+      FileBlockRequestMessage request,
+      ByteBuffer data,
+      Runnable release
+    ) {
+      try {
+        ByteBuffer header = ByteBuffer.wrap(
+          WireProtocol.encodeFileBlockAnswerHeader(
+            correlationId,
+            request,
+            data.remaining()
+          )
+        );
+        enqueue(new BufferRegion(header, data, release));
+        return true;
+      } catch (IOException e) {
+        System.err.println("[ERROR] Failed to send buffer: " + request);
+        release.run();
+        return false;
+      }
+    }
+
+    private void enqueue(Object frame) {
+      long pending = pendingWriteBytes.addAndGet(remainingOf(frame));
+      if (pending > WRITE_LIMIT) {
+        System.out.println("[ERROR] Peer not reading, dropping: " + peerId);
+        release(frame);
+        close();
+        return;
+      }
+      writeQueue.add(frame);
+      try {
+        key.interestOpsOr(SelectionKey.OP_WRITE);
+        key.selector().wakeup();
+      } catch (CancelledKeyException e) {
+        clearWriteQueue();
+      }
+    }
+
+    private void clearWriteQueue() {
+      Object frame;
+      while ((frame = writeQueue.poll()) != null) release(frame);
+    }
+
+    private void release(Object frame) {
+      if (frame instanceof FileRegion) ((FileRegion) frame).release.run();
+      if (frame instanceof BufferRegion) ((BufferRegion) frame).release.run();
+    }
+
+    private void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        close();
+        return;
+      }
+      readFrames();
+    }
+
+    // Runs on the selector thread, once the upload queue has room again
+    private void resume() throws IOException {
+      if (!key.isValid() || pausedRequest == null) return;
+      CorrelatedMessage message = pausedRequest;
+      pausedRequest = null;
+      if (!submitUpload(message)) return;
+      key.interestOpsOr(SelectionKey.OP_READ);
+      // Frames already buffered raise no read event
+      readFrames();
+    }
+
+    // Returns false, with reading paused, if the upload queue is full
+    private boolean submitUpload(CorrelatedMessage message) {
+      FileBlockRequestMessage request =
+        (FileBlockRequestMessage) message.getPayload();
+      boolean queued = uploadScheduler.offer(
+        this,
+        message.getCorrelationId(),
+        request.getLength(),
+        () -> {
+          handler.handle(this, message);
+          awaitWritable();
+        },
+        () -> ioLoop.resume(this)
+      );
+      if (!queued) {
+        pausedRequest = message;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+      return queued;
+    }
+
+    private void readFrames() throws IOException {
+      readBuffer.flip();
+      while (readBuffer.remaining() >= WireProtocol.HEADER_SIZE) {
+        int start = readBuffer.position();
+        int length = readBuffer.getInt(start + 10);
+        if (length < 0 || length > WireProtocol.MAX_FRAME_LENGTH) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        if (readBuffer.remaining() < WireProtocol.HEADER_SIZE + length) break;
+        int version = readBuffer.get() & 0xff;
+        byte type = readBuffer.get();
+        long correlationId = readBuffer.getLong();
+        readBuffer.getInt();
+        byte[] payload = new byte[length];
+        readBuffer.get(payload);
+        CorrelatedMessage message = new CorrelatedMessage(
+          correlationId,
+          WireProtocol.decodePayload(version, type, payload)
+        );
+        if (message.getPayload() instanceof FileBlockRequestMessage) {
+          FileBlockRequestMessage request =
+            (FileBlockRequestMessage) message.getPayload();
+          if (!MessageHandler.isValidLength(request)) continue;
+          if (!submitUpload(message)) break;
+        } else if (message.getPayload() instanceof CancelBlockRequestMessage) {
+          uploadScheduler.cancel(this, correlationId);
+        } else {
+          workers.execute(() -> handler.handle(this, message));
+        }
+      }
+      readBuffer.compact();
+      // Grow the buffer when a single frame does not fit in it
+      if (readBuffer.position() >= WireProtocol.HEADER_SIZE) {
+        int needed = WireProtocol.HEADER_SIZE + readBuffer.getInt(10);
+        if (needed > readBuffer.capacity()) {
+          ByteBuffer bigger = ByteBuffer.allocate(needed);
+          readBuffer.flip();
+          bigger.put(readBuffer);
+          readBuffer = bigger;
+        }
+      }
+    }
+
+    // Holds the upload slot of the calling thread while the peer is behind
+    // on reading
+    private void awaitWritable() {
+      synchronized (this) {
+        try {
+          while (
+            pendingWriteBytes.get() > WRITE_HIGH_WATER && channel.isOpen()
+          ) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    private void written(long bytes) {
+      long pending = pendingWriteBytes.addAndGet(-bytes);
+      if (pending <= WRITE_HIGH_WATER && pending + bytes > WRITE_HIGH_WATER) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+
+    private long remainingOf(Object frame) {
+      if (frame instanceof ByteBuffer) return ((ByteBuffer) frame).remaining();
+      if (frame instanceof BufferRegion) {
+        return ((BufferRegion) frame).remaining();
+      }
+      return ((FileRegion) frame).remaining();
+    }
+
+    private void flush() throws IOException {
+      Object frame;
+      while ((frame = writeQueue.peek()) != null) {
+        long before = remainingOf(frame);
+        boolean done;
+        if (frame instanceof ByteBuffer) {
+          ByteBuffer buffer = (ByteBuffer) frame;
+          channel.write(buffer);
+          done = !buffer.hasRemaining();
+        } else if (frame instanceof BufferRegion) {
+          done = ((BufferRegion) frame).writeTo(channel);
+        } else {
+          done = ((FileRegion) frame).writeTo(channel);
+        }
+        written(before - remainingOf(frame));
+        if (!done) return;
+        // close() may have taken the frame already
+        release(writeQueue.poll());
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      // A reply may have been queued after the last peek
+      if (!writeQueue.isEmpty()) key.interestOpsOr(SelectionKey.OP_WRITE);
+    }
+
+    private void close() {
+      key.cancel();
+      clearWriteQueue();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.err.println("[ERROR] Error closing channel: " + e.getMessage());
+      }
+      // Uploads waiting for the peer to read give up their slot
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+}
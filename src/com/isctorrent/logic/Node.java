@@ -3,12 +3,21 @@ package com.isctorrent.logic;
 import com.isctorrent.gui.Alert;
 import com.isctorrent.logic.messages.*;
 import com.isctorrent.logic.models.*;
+import com.isctorrent.metrics.MetricsExporter;
+import com.isctorrent.metrics.MetricsRegistry;
+import com.isctorrent.util.Config;
+import com.isctorrent.util.ExecutorFactory;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Node {
 
@@ -17,9 +26,28 @@ public class Node {
   private int port;
   private NodeId nodeId;
   private ServerSocket serverSocket;
+  private NioServer nioServer;
+  private ServerEngine serverEngine = ServerEngine.BLOCKING;
   private Map<NodeId, Connection> connections = new HashMap<>();
+  // Guarded by connections
+  private Map<NodeId, ConnectionGroup> connectionGroups = new HashMap<>();
   private final long CONNECT_TIMEOUT = 2000;
+  private final long REQUEST_TIMEOUT = 5000;
+  private static final long SEARCH_PEER_TIMEOUT = Config.SEARCH_PEER_TIMEOUT;
+  private static final long SEARCH_DEADLINE = Config.SEARCH_DEADLINE;
+  private static final int NIO_IO_THREADS = Config.NIO_IO_THREADS;
+  private static final int NIO_WORKER_THREADS = Config.NIO_WORKER_THREADS;
+  private static final int MAX_CONNECTIONS_PER_PEER =
+    Config.MAX_CONNECTIONS_PER_PEER;
+  private static final boolean COMPRESSION = Config.COMPRESSION;
+  private static final int UPLOAD_SLOTS = Config.UPLOAD_SLOTS;
+  private static final int UPLOAD_QUEUE_CAPACITY = Config.UPLOAD_QUEUE_CAPACITY;
+  private static final int MAX_BLOCK_SIZE = Config.MAX_BLOCK_SIZE;
+  private static final int METRICS_PORT = Config.METRICS_PORT;
   private WorkFolder workFolder = null;
+  private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+  private UploadScheduler uploadScheduler;
+  private final MetricsRegistry metrics = new MetricsRegistry();
 
   public Node(String hostName, int port) {
     this.port = port;
@@ -54,19 +82,51 @@ public class Node {
   }
 
   public void startServerAsync() {
-    Thread serverThread = new Thread(() -> startServer());
-    serverThread.start();
+    ExecutorFactory.startThread(() -> startServer());
+  }
+
+  public void setServerEngine(ServerEngine serverEngine) {
+    this.serverEngine = serverEngine;
+  }
+
+  public ServerEngine getServerEngine() {
+    return serverEngine;
   }
 
   public void startServer() {
+    if (serverEngine == ServerEngine.NIO) {
+      startNioServer();
+    } else {
+      startBlockingServer();
+    }
+  }
+
+  private void startNioServer() {
+    try {
+      nioServer =
+        new NioServer(this, port, NIO_IO_THREADS, NIO_WORKER_THREADS);
+      System.out.println("[INFO] Node listening (nio) on port: " + port);
+      nioServer.start();
+    } catch (IOException e) {
+      if (nioServer != null && nioServer.isClosed()) {
+        System.out.println("[INFO] Server stopped.");
+      } else {
+        System.err.println("[ERROR] Server error message: " + e.getMessage());
+      }
+    }
+  }
+
+  private void startBlockingServer() {
     try {
-      serverSocket = new ServerSocket(port);
+      // Channel-backed, so accepted sockets can be used with transferTo
+      serverSocket = ServerSocketChannel.open().socket();
+      serverSocket.bind(new InetSocketAddress(port));
       System.out.println("[INFO] Node listening on port: " + port);
       while (!serverSocket.isClosed()) {
         Socket clientSocket = serverSocket.accept();
         Connection connection = new Connection(clientSocket);
         ClientHandler handler = new ClientHandler(connection, this);
-        handler.start();
+        ExecutorFactory.startThread(handler);
       }
     } catch (IOException e) {
       if (serverSocket != null && serverSocket.isClosed()) {
@@ -78,16 +138,24 @@ public class Node {
   }
 
   public void addPeerAsync(Node peer) {
-    Thread connectionThread = new Thread(() -> addPeer(peer));
-    connectionThread.start();
+    ExecutorFactory.startThread(() -> addPeer(peer));
   }
 
   public void addPeer(Node peer) {
-    new Thread(() -> {
+    ExecutorFactory.startThread(() -> {
       try {
         Socket client = new Socket(peer.getIpAddress(), peer.getPort());
+        Connection connection = new Connection(client);
+        if (!negotiate(connection)) {
+          System.err.println("[ERROR] Handshake failed with peer: " + peer);
+          connection.close();
+          synchronized (connections) {
+            connections.notifyAll();
+          }
+          return;
+        }
         synchronized (connections) {
-          connections.put(peer.getNodeId(), new Connection(client));
+          connections.put(peer.getNodeId(), connection);
           connections.notifyAll();
         }
         System.out.println("[INFO] Added new peer: " + peer);
@@ -98,8 +166,35 @@ public class Node {
         }
         e.printStackTrace();
       }
-    })
-      .start();
+    });
+  }
+
+  // Agrees on the encoding and compression of a connection back to a peer
+  // that connected to this node. Flagged as a data connection, so the peer
+  // does not connect back in turn.
+  private boolean negotiate(Connection connection) {
+    NewConnectionRequest request = new NewConnectionRequest(
+      this.getHostName(),
+      this.getPort(),
+      WireProtocol.MAX_VERSION,
+      true,
+      COMPRESSION
+    );
+    try {
+      Object object = connection
+        .request(request)
+        .get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+      if (!(object instanceof NewConnectionRequestAck)) return false;
+      NewConnectionRequestAck ack = (NewConnectionRequestAck) object;
+      connection.setProtocolVersion(ack.getProtocolVersion());
+      connection.setCompressionEnabled(ack.isCompression());
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      return false;
+    }
   }
 
   public void removePeer(Node peer) {
@@ -108,6 +203,10 @@ public class Node {
       if (connection != null) {
         connection.close();
       }
+      ConnectionGroup group = connectionGroups.remove(peer.getNodeId());
+      if (group != null) {
+        group.close();
+      }
     }
   }
 
@@ -138,104 +237,209 @@ public class Node {
     Connection connection = connections.get(peer.getNodeId());
     NewConnectionRequest request = new NewConnectionRequest(
       this.getHostName(),
-      this.getPort()
+      this.getPort(),
+      WireProtocol.MAX_VERSION,
+      false,
+      COMPRESSION
     );
-    connection.send(request);
-
     Object object;
-    while ((object = connection.receive()) != null) {
-      if (object instanceof NewConnectionRequestAck) {
-        NewConnectionRequestAck ack = (NewConnectionRequestAck) object;
-        if (ack.getNodeId().equals(this.nodeId)) {
-          Alert.showInfo("Connection accepted by peer: " + peer.getNodeId());
-          return;
-        } else {
-          Alert.showError("Connection rejected by peer: " + peer.getNodeId());
-          connection.close();
-        }
+    try {
+      object =
+        connection
+          .request(request)
+          .get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException | TimeoutException e) {
+      Alert.showError("Connection timeout with peer: " + peer.getNodeId());
+      return;
+    }
+    if (object instanceof NewConnectionRequestAck) {
+      NewConnectionRequestAck ack = (NewConnectionRequestAck) object;
+      if (ack.getNodeId().equals(this.nodeId)) {
+        connection.setProtocolVersion(ack.getProtocolVersion());
+        connection.setCompressionEnabled(ack.isCompression());
+        Alert.showInfo("Connection accepted by peer: " + peer.getNodeId());
+        return;
       }
     }
+    Alert.showError("Connection rejected by peer: " + peer.getNodeId());
+    connection.close();
   }
 
   public void setWorkfolder(WorkFolder workFolder) {
     this.workFolder = workFolder;
+    workFolder.registerMetrics(metrics);
   }
 
   public WorkFolder getWorkFolder() {
     return this.workFolder;
   }
 
-  public Map<String, List<FileSearchResult>> searchWord(String word) {
-    if (connections.isEmpty()) {
-      Alert.showInfo("No peers connected, search ignored.");
-      return new HashMap<>();
+  public BandwidthLimiter getBandwidthLimiter() {
+    return bandwidthLimiter;
+  }
+
+  // Shared by every connection of both server engines, started on first use
+  synchronized UploadScheduler getUploadScheduler() {
+    if (uploadScheduler == null) {
+      uploadScheduler =
+        new UploadScheduler(UPLOAD_SLOTS, UPLOAD_QUEUE_CAPACITY, MAX_BLOCK_SIZE);
+      UploadScheduler scheduler = uploadScheduler;
+      metrics.gauge("upload_queued_requests", scheduler::getQueuedCount);
+      metrics.gauge("upload_running", scheduler::getRunningCount);
+    }
+    return uploadScheduler;
+  }
+
+  public MetricsRegistry getMetrics() {
+    return metrics;
+  }
+
+  // Registers the metrics over JMX, and serves them over HTTP if a metrics
+  // port is configured
+  public void exportMetrics() {
+    try {
+      MetricsExporter.registerMBean(
+        metrics,
+        "com.isctorrent:type=Metrics,port=" + port
+      );
+    } catch (Exception e) {
+      System.err.println("[ERROR] Failed to register metrics: " + e);
     }
+    if (METRICS_PORT <= 0) return;
+    try {
+      MetricsExporter.startHttpServer(metrics, METRICS_PORT);
+      System.out.println(
+        "[INFO] Metrics on http://localhost:" + METRICS_PORT + "/metrics"
+      );
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to serve metrics: " + e.getMessage());
+    }
+  }
+
+  // Blocks until every peer answered or the search deadline passed
+  public Map<String, List<FileSearchResult>> searchWord(String word) {
+    Map<String, List<FileSearchResult>> resultsByFileHash = new HashMap<>();
+    SearchHandle search = searchWordAsync(
+      word,
+      SEARCH_PEER_TIMEOUT,
+      SEARCH_DEADLINE,
+      new SearchListener() {
+        @Override
+        public void resultsReceived(
+          NodeId peer,
+          List<FileSearchResult> results
+        ) {
+          for (FileSearchResult result : results) {
+            resultsByFileHash
+              .computeIfAbsent(result.getFileHash(), k -> new ArrayList<>())
+              .add(result);
+          }
+        }
 
-    List<Thread> threads = new ArrayList<>();
-    List<FileSearchResult> results = new ArrayList<>();
+        @Override
+        public void peerFailed(NodeId peer) {}
 
+        @Override
+        public void searchFinished() {}
+      }
+    );
+    try {
+      search.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      search.cancel();
+    }
+    // Listener calls run under the handle's monitor
+    synchronized (search) {
+      return resultsByFileHash;
+    }
+  }
+
+  // Results are streamed to the listener as each peer answers. A peer that
+  // does not answer within peerTimeoutMillis is reported as failed, and the
+  // whole search is cancelled after deadlineMillis.
+  public SearchHandle searchWordAsync(
+    String word,
+    long peerTimeoutMillis,
+    long deadlineMillis,
+    SearchListener listener
+  ) {
+    Map<NodeId, CompletableFuture<Object>> replies = new HashMap<>();
+    long startTime = System.nanoTime();
+    metrics.counter("searches_total").increment();
+    boolean noPeers;
     synchronized (connections) {
+      noPeers = connections.isEmpty();
       for (Map.Entry<NodeId, Connection> entry : connections.entrySet()) {
         NodeId peerNodeId = entry.getKey();
         Connection connection = entry.getValue();
         if (connection.isAlive()) {
-          Thread thread = new Thread(() -> {
-            WordSearchMessage message = new WordSearchMessage(
-              word,
-              this.getHostName(),
-              this.getPort()
-            );
-            connection.send(message);
-            Object object;
-            while ((object = connection.receive()) != null) {
-              if (object instanceof List<?>) {
-                try {
-                  @SuppressWarnings("unchecked")
-                  List<FileSearchResult> resultList = (List<FileSearchResult>) object;
-                  results.addAll(resultList);
-                } catch (ClassCastException e) {
-                  throw new IllegalStateException(
-                    "Received list is not of type List<FileSearchResult>",
-                    e
-                  );
-                }
-              }
-              return;
-            }
-            System.err.println(
-              "[ERROR] Timeout waiting for peer: " + peerNodeId
-            );
-          });
-          threads.add(thread);
-          thread.start();
+          WordSearchMessage message = new WordSearchMessage(
+            word,
+            this.getHostName(),
+            this.getPort()
+          );
+          CompletableFuture<Object> reply = connection
+            .request(message)
+            .orTimeout(peerTimeoutMillis, TimeUnit.MILLISECONDS);
+          reply.thenRun(() ->
+            metrics
+              .histogram("search_peer_latency_ms", "peer", peerNodeId.getId())
+              .recordNanos(System.nanoTime() - startTime)
+          );
+          replies.put(peerNodeId, reply);
         } else {
           System.out.println("[INFO] Dead connection with peer: " + peerNodeId);
         }
       }
     }
+    // The dialog is modal, so it is shown without the monitor held
+    if (noPeers) Alert.showInfo("No peers connected, search ignored.");
+    // Until the last peer answered, failed or was cut off by the deadline
+    CompletableFuture
+      .allOf(replies.values().toArray(new CompletableFuture<?>[0]))
+      .whenComplete((v, e) ->
+        metrics
+          .histogram("search_latency_ms")
+          .recordNanos(System.nanoTime() - startTime)
+      );
+    SearchHandle search = new SearchHandle(listener, replies);
+    search.start();
+    CompletableFuture
+      .delayedExecutor(deadlineMillis, TimeUnit.MILLISECONDS)
+      .execute(search::cancel);
+    return search;
+  }
 
-    for (Thread thread : threads) {
-      try {
-        thread.join();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-
-    Map<String, List<FileSearchResult>> resultsByFileHash = new HashMap<>();
-    synchronized (results) {
-      for (FileSearchResult result : results) {
-        resultsByFileHash
-          .computeIfAbsent(result.getFileHash(), k -> new ArrayList<>())
-          .add(result);
+  // Groups are made on first use and follow the peer's current connection
+  private Map<NodeId, ConnectionGroup> getConnectionGroups() {
+    synchronized (connections) {
+      connectionGroups.keySet().retainAll(connections.keySet());
+      for (Map.Entry<NodeId, Connection> entry : connections.entrySet()) {
+        ConnectionGroup group = connectionGroups.get(entry.getKey());
+        if (group == null || group.getPrimary() != entry.getValue()) {
+          if (group != null) group.shrinkTo(1);
+          connectionGroups.put(
+            entry.getKey(),
+            new ConnectionGroup(
+              entry.getKey(),
+              entry.getValue(),
+              this,
+              MAX_CONNECTIONS_PER_PEER,
+              REQUEST_TIMEOUT
+            )
+          );
+        }
       }
+      return new HashMap<>(connectionGroups);
     }
-    return resultsByFileHash;
   }
 
   public void downloadAsync(String fileName, List<FileSearchResult> results) {
-    Thread downloadThread = new Thread(() -> download(fileName, results));
-    downloadThread.start();
+    ExecutorFactory.startThread(() -> download(fileName, results));
   }
 
   public void download(String fileName, List<FileSearchResult> results) {
@@ -243,9 +447,11 @@ public class Node {
     try {
       DownloadTasksManager manager = new DownloadTasksManager(
         fileName,
-        this.getWorkFolder()
+        this.getWorkFolder(),
+        bandwidthLimiter,
+        metrics
       );
-      manager.download(results, connections);
+      manager.download(results, getConnectionGroups());
     } catch (Exception e) {
       Alert.showError("Error downloading file: " + fileName);
     }
@@ -0,0 +1,85 @@
+package com.isctorrent.logic;
+
+// Transfer statistics of one peer during a download, updated by its worker
+// and read by the scheduler
+class PeerStats {
+
+  private static final long RATE_SAMPLE_INTERVAL = 250; // milliseconds
+  private static final double RATE_SMOOTHING = 0.25;
+
+  private long startTime;
+  private long lastBlockTime;
+  private long bytes;
+  private int blocks;
+  private int failedBlocks;
+  private double smoothedRttMillis;
+  // Recent rate, smoothed over samples of RATE_SAMPLE_INTERVAL
+  private double rate;
+  private long sampleStartTime;
+  private long sampleBytes;
+
+  public synchronized void started() {
+    startTime = System.currentTimeMillis();
+    sampleStartTime = startTime;
+  }
+
+  public synchronized void blockReceived(long length, double rttMillis) {
+    long now = System.currentTimeMillis();
+    lastBlockTime = now;
+    bytes += length;
+    blocks++;
+    smoothedRttMillis = rttMillis;
+    sampleBytes += length;
+    long elapsed = now - sampleStartTime;
+    if (elapsed >= RATE_SAMPLE_INTERVAL) {
+      double sample = sampleBytes * 1000.0 / elapsed;
+      rate = rate == 0
+        ? sample
+        : (1 - RATE_SMOOTHING) * rate + RATE_SMOOTHING * sample;
+      sampleStartTime = now;
+      sampleBytes = 0;
+    }
+  }
+
+  public synchronized void blockFailed() {
+    failedBlocks++;
+  }
+
+  // Bytes per second, recent if enough has been received to tell
+  public synchronized double getThroughput() {
+    return rate > 0 ? rate : getAverageThroughput();
+  }
+
+  public synchronized double getAverageThroughput() {
+    long elapsed = (blocks > 0 ? lastBlockTime : startTime) - startTime;
+    return elapsed > 0 ? bytes * 1000.0 / elapsed : 0;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized int getBlocks() {
+    return blocks;
+  }
+
+  public synchronized int getFailedBlocks() {
+    return failedBlocks;
+  }
+
+  public synchronized double getSmoothedRttMillis() {
+    return smoothedRttMillis;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+      "%d blocks, %.1f KB at %.1f KB/s, rtt %.1f ms%s",
+      blocks,
+      bytes / 1024.0,
+      getAverageThroughput() / 1024,
+      smoothedRttMillis,
+      failedBlocks > 0 ? ", " + failedBlocks + " failed" : ""
+    );
+  }
+}
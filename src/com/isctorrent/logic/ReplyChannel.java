@@ -0,0 +1,44 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileBlockRequestMessage;
+import com.isctorrent.logic.models.NodeId;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Server side of a peer connection, as seen by MessageHandler
+interface ReplyChannel {
+  int getProtocolVersion();
+
+  void setProtocolVersion(int protocolVersion);
+
+  boolean isCompressionEnabled();
+
+  void setCompressionEnabled(boolean compressionEnabled);
+
+  // The node on the other end, known once it sent its handshake
+  NodeId getPeerId();
+
+  void setPeerId(NodeId peerId);
+
+  void reply(long correlationId, Object message);
+
+  boolean supportsFileRegions();
+
+  // The file may be read after the call returns. release runs exactly once,
+  // when the region is written or dropped.
+  boolean replyWithFileRegion(
+    long correlationId,
+    FileBlockRequestMessage request,
+    FileChannel file,
+    Runnable release
+  );
+
+  // Same contract as replyWithFileRegion, for a buffer that must not be
+  // reused before release runs
+  boolean replyWithBuffer(
+    long correlationId,
+    FileBlockRequestMessage request,
+    ByteBuffer data,
+    Runnable release
+  );
+}
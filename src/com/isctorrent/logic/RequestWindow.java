@@ -0,0 +1,120 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class RequestWindow {
+
+  // Vegas-style thresholds, in blocks queued beyond the path capacity
+  private static final double ALPHA = 1.0;
+  private static final double BETA = 3.0;
+  private static final double RTT_SMOOTHING = 0.125;
+
+  private final int minSize;
+  private final int maxSize;
+  private final boolean adaptive;
+  private int size;
+  // hash:index -> pending request
+  private final Map<String, Pending> outstanding = new HashMap<>();
+
+  private long minRtt = Long.MAX_VALUE; // nanos
+  private double smoothedRtt = 0; // nanos
+  private long lastRtt = 0; // nanos
+  private int answersSinceResize = 0;
+
+  private static class Pending {
+
+    private final FileBlockRequestMessage request;
+    private final long sendTime;
+
+    private Pending(FileBlockRequestMessage request, long sendTime) {
+      this.request = request;
+      this.sendTime = sendTime;
+    }
+  }
+
+  public RequestWindow(int initialSize, int minSize, int maxSize) {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.size = Math.min(this.maxSize, Math.max(this.minSize, initialSize));
+    this.adaptive = this.minSize < this.maxSize;
+  }
+
+  private static String key(String hash, int index) {
+    return hash + ":" + index;
+  }
+
+  public boolean hasCapacity() {
+    return outstanding.size() < size;
+  }
+
+  public boolean isEmpty() {
+    return outstanding.isEmpty();
+  }
+
+  public void add(FileBlockRequestMessage request) {
+    outstanding.put(
+      key(request.getHash(), request.getIndex()),
+      new Pending(request, System.nanoTime())
+    );
+  }
+
+  // Returns the matching request, or null if the answer was not expected
+  public FileBlockRequestMessage complete(FileBlockAnswerMessage answer) {
+    Pending pending = outstanding.remove(
+      key(answer.getHash(), answer.getIndex())
+    );
+    if (pending == null) return null;
+    long rtt = System.nanoTime() - pending.sendTime;
+    updateRtt(rtt);
+    resize();
+    return pending.request;
+  }
+
+  // Forgets a request whose answer is no longer wanted
+  public void cancel(FileBlockRequestMessage request) {
+    outstanding.remove(key(request.getHash(), request.getIndex()));
+  }
+
+  public List<FileBlockRequestMessage> drain() {
+    List<FileBlockRequestMessage> requests = new ArrayList<>();
+    for (Pending pending : outstanding.values()) {
+      requests.add(pending.request);
+    }
+    outstanding.clear();
+    return requests;
+  }
+
+  // Of the last completed request
+  public long getLastRttNanos() {
+    return lastRtt;
+  }
+
+  public double getSmoothedRttMillis() {
+    return smoothedRtt / 1_000_000.0;
+  }
+
+  private void updateRtt(long rtt) {
+    lastRtt = rtt;
+    minRtt = Math.min(minRtt, rtt);
+    smoothedRtt = smoothedRtt == 0
+      ? rtt
+      : (1 - RTT_SMOOTHING) * smoothedRtt + RTT_SMOOTHING * rtt;
+  }
+
+  // Resize at most once per window of answers, comparing the expected
+  // throughput (size / minRtt) with the actual one (size / smoothedRtt)
+  private void resize() {
+    if (!adaptive || ++answersSinceResize < size) return;
+    answersSinceResize = 0;
+    double queued = size * (1 - minRtt / smoothedRtt);
+    if (queued < ALPHA && size < maxSize) {
+      size++;
+    } else if (queued > BETA && size > minSize) {
+      size--;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileSearchResult;
+import com.isctorrent.logic.models.NodeId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+// A search in progress. Each peer's reply is forwarded to the listener as it
+// arrives; cancelling drops the replies still outstanding.
+public class SearchHandle {
+
+  private final SearchListener listener;
+  private final Map<NodeId, CompletableFuture<Object>> replies;
+  private final CountDownLatch finished;
+  private int pendingPeers;
+  private boolean done;
+
+  SearchHandle(
+    SearchListener listener,
+    Map<NodeId, CompletableFuture<Object>> replies
+  ) {
+    this.listener = listener;
+    this.replies = replies;
+    this.finished = new CountDownLatch(1);
+    this.pendingPeers = replies.size();
+  }
+
+  void start() {
+    if (replies.isEmpty()) {
+      finish();
+      return;
+    }
+    replies.forEach((peer, reply) ->
+      reply.whenComplete((response, e) -> peerReplied(peer, response, e))
+    );
+  }
+
+  private synchronized void peerReplied(
+    NodeId peer,
+    Object response,
+    Throwable e
+  ) {
+    if (done) return;
+    if (e == null && response instanceof List<?>) {
+      @SuppressWarnings("unchecked")
+      List<FileSearchResult> results = (List<FileSearchResult>) response;
+      listener.resultsReceived(peer, results);
+    } else {
+      System.err.println("[ERROR] No search results from peer: " + peer);
+      listener.peerFailed(peer);
+    }
+    if (--pendingPeers == 0) finish();
+  }
+
+  private synchronized void finish() {
+    if (done) return;
+    done = true;
+    listener.searchFinished();
+    finished.countDown();
+  }
+
+  // Peers that have not answered yet are ignored from now on
+  public void cancel() {
+    synchronized (this) {
+      if (done) return;
+      finish();
+    }
+    replies.values().forEach(reply -> reply.cancel(false));
+  }
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  public void await() throws InterruptedException {
+    finished.await();
+  }
+}
@@ -0,0 +1,15 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.FileSearchResult;
+import com.isctorrent.logic.models.NodeId;
+import java.util.List;
+
+// Receives the results of a search as each peer answers. Calls for one
+// search never overlap, and none follow searchFinished.
+public interface SearchListener {
+  void resultsReceived(NodeId peer, List<FileSearchResult> results);
+
+  void peerFailed(NodeId peer);
+
+  void searchFinished();
+}
@@ -0,0 +1,8 @@
+package com.isctorrent.logic;
+
+public enum ServerEngine {
+  // One ClientHandler thread per connection
+  BLOCKING,
+  // Selector threads plus a shared worker pool
+  NIO,
+}
@@ -0,0 +1,54 @@
+package com.isctorrent.logic;
+
+// Limits a byte rate while letting up to burstMillis worth of unused rate
+// be spent at once. A transfer larger than the tokens available goes ahead
+// as soon as the bucket is not in debt, and the debt delays the next one,
+// so blocks of any size keep the average rate. A rate of 0 means unlimited.
+class TokenBucket {
+
+  private final long burstMillis;
+  private double rate; // bytes per second
+  private double tokens;
+  private long lastRefillTime;
+
+  public TokenBucket(long rate, long burstMillis) {
+    this.burstMillis = burstMillis;
+    this.lastRefillTime = System.nanoTime();
+    setRate(rate);
+    tokens = getBurst();
+  }
+
+  // Takes effect for the transfers already waiting too
+  public synchronized void setRate(long rate) {
+    refill();
+    this.rate = Math.max(0, rate);
+    tokens = Math.min(tokens, getBurst());
+    notifyAll();
+  }
+
+  public synchronized long getRate() {
+    return (long) rate;
+  }
+
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    while (rate > 0) {
+      refill();
+      if (tokens > 0) {
+        tokens -= bytes;
+        return;
+      }
+      wait(Math.max(1, (long) Math.ceil(-tokens * 1000 / rate)));
+    }
+  }
+
+  private double getBurst() {
+    return rate * burstMillis / 1000;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens =
+      Math.min(getBurst(), tokens + rate * (now - lastRefillTime) / 1e9);
+    lastRefillTime = now;
+  }
+}
@@ -0,0 +1,216 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.util.ExecutorFactory;
+import java.util.*;
+
+// Serves the block requests of every connection of the node from a fixed
+// number of upload slots. Each requester has a bounded queue, and a full
+// queue pushes back on the connection instead of growing. Requesters take
+// turns in deficit round-robin, so each gets the same share of bytes
+// whatever its block size. Slots go first to requesters holding less than
+// an even split of them, and none may hold more than half, so one with
+// large blocks or waiting on its rate limit does not crowd out the others.
+class UploadScheduler {
+
+  private static class Upload {
+
+    // The connection and correlation id of the request, to cancel it by
+    final ReplyChannel channel;
+    final long correlationId;
+    final long bytes;
+    final Runnable task;
+
+    Upload(ReplyChannel channel, long correlationId, long bytes, Runnable task) {
+      this.channel = channel;
+      this.correlationId = correlationId;
+      this.bytes = bytes;
+      this.task = task;
+    }
+  }
+
+  private static class Requester {
+
+    final Deque<Upload> queue = new ArrayDeque<>();
+    // Run once the queue has room again
+    final List<Runnable> spaceListeners = new ArrayList<>();
+    long deficit;
+    int running;
+  }
+
+  private final int slots;
+  private final int queueCapacity;
+  private final long quantum;
+  private final int maxSlotsPerRequester;
+  private final Map<Object, Requester> requesters = new HashMap<>();
+  // Requesters with queued uploads, in serving order
+  private final Deque<Object> active = new ArrayDeque<>();
+
+  public UploadScheduler(int slots, int queueCapacity, long quantum) {
+    this.slots = slots;
+    this.queueCapacity = queueCapacity;
+    this.quantum = quantum;
+    this.maxSlotsPerRequester = Math.max(1, slots / 2);
+    for (int i = 0; i < slots; i++) {
+      ExecutorFactory.startDaemonThread(this::serve);
+    }
+  }
+
+  // Blocks while the requester's queue is full. An upload larger than the
+  // quantum would never be served, so callers validate the length first.
+  public synchronized void submit(
+    ReplyChannel channel,
+    long correlationId,
+    long bytes,
+    Runnable task
+  ) throws InterruptedException {
+    Object requester = requesterOf(channel);
+    while (queuedCount(requester) >= queueCapacity) wait();
+    enqueue(requester, new Upload(channel, correlationId, bytes, task));
+  }
+
+  // Returns false without queueing if the requester's queue is full, in
+  // which case onSpace runs once it has room
+  public boolean offer(
+    ReplyChannel channel,
+    long correlationId,
+    long bytes,
+    Runnable task,
+    Runnable onSpace
+  ) {
+    Object requester = requesterOf(channel);
+    synchronized (this) {
+      if (queuedCount(requester) < queueCapacity) {
+        enqueue(requester, new Upload(channel, correlationId, bytes, task));
+        return true;
+      }
+      requesters.get(requester).spaceListeners.add(onSpace);
+    }
+    return false;
+  }
+
+  // Drops an upload still waiting in its queue, as another peer delivered
+  // the block first. An upload already running is left to finish.
+  public void cancel(ReplyChannel channel, long correlationId) {
+    Object key = requesterOf(channel);
+    List<Runnable> spaceListeners;
+    synchronized (this) {
+      Requester requester = requesters.get(key);
+      if (
+        requester == null ||
+        !requester.queue.removeIf(upload ->
+          upload.channel == channel && upload.correlationId == correlationId
+        )
+      ) {
+        return;
+      }
+      if (requester.queue.isEmpty()) {
+        active.remove(key);
+        requester.deficit = 0;
+        if (requester.running == 0) requesters.remove(key);
+      }
+      spaceListeners = new ArrayList<>(requester.spaceListeners);
+      requester.spaceListeners.clear();
+      notifyAll();
+    }
+    spaceListeners.forEach(Runnable::run);
+  }
+
+  // Connections of the same peer share a queue and a turn
+  private static Object requesterOf(ReplyChannel channel) {
+    return channel.getPeerId() != null ? channel.getPeerId() : channel;
+  }
+
+  public synchronized int getQueuedCount() {
+    int count = 0;
+    for (Requester requester : requesters.values()) {
+      count += requester.queue.size();
+    }
+    return count;
+  }
+
+  public synchronized int getRunningCount() {
+    int count = 0;
+    for (Requester requester : requesters.values()) {
+      count += requester.running;
+    }
+    return count;
+  }
+
+  private int queuedCount(Object requester) {
+    Requester state = requesters.get(requester);
+    return state == null ? 0 : state.queue.size();
+  }
+
+  private void enqueue(Object key, Upload upload) {
+    Requester requester = requesters.computeIfAbsent(key, k -> new Requester());
+    if (requester.queue.isEmpty()) active.addLast(key);
+    requester.queue.addLast(upload);
+    notifyAll();
+  }
+
+  private void serve() {
+    while (true) {
+      Object key;
+      Upload upload;
+      List<Runnable> spaceListeners;
+      synchronized (this) {
+        try {
+          while ((key = nextRequester()) == null) wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+        Requester requester = requesters.get(key);
+        upload = requester.queue.pollFirst();
+        requester.deficit -= upload.bytes;
+        requester.running++;
+        if (requester.queue.isEmpty()) {
+          active.remove(key);
+          requester.deficit = 0;
+        }
+        spaceListeners = new ArrayList<>(requester.spaceListeners);
+        requester.spaceListeners.clear();
+        notifyAll();
+      }
+      spaceListeners.forEach(Runnable::run);
+      try {
+        upload.task.run();
+      } catch (RuntimeException e) {
+        System.out.println("[ERROR] Upload failed: " + e.getMessage());
+      } finally {
+        synchronized (this) {
+          Requester requester = requesters.get(key);
+          requester.running--;
+          if (requester.running == 0 && requester.queue.isEmpty()) {
+            requesters.remove(key);
+          }
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private Object nextRequester() {
+    if (active.isEmpty()) return null;
+    int evenShare = Math.max(1, slots / requesters.size());
+    Object key = nextRequester(evenShare);
+    return key != null ? key : nextRequester(maxSlotsPerRequester);
+  }
+
+  // The first requester in turn, among those running fewer than maxRunning
+  // uploads, whose deficit covers its next upload. Each one passed over is
+  // credited a quantum and moved to the back.
+  private Object nextRequester(int maxRunning) {
+    for (int visited = 0; visited < 2 * active.size(); visited++) {
+      Object key = active.peekFirst();
+      Requester requester = requesters.get(key);
+      if (requester.running < maxRunning) {
+        if (requester.deficit >= requester.queue.peekFirst().bytes) {
+          return key;
+        }
+        requester.deficit += quantum;
+      }
+      active.addLast(active.pollFirst());
+    }
+    return null;
+  }
+}
@@ -0,0 +1,139 @@
+package com.isctorrent.logic;
+
+import com.isctorrent.logic.messages.*;
+import java.io.*;
+
+// Frame layout: version (1) | type (1) | correlation id (8) | length (4) | payload
+class WireProtocol {
+
+  // Payload encodings, carried in the version byte of every frame
+  public static final int VERSION_SERIALIZED = 1;
+  public static final int VERSION_BINARY = 2;
+  public static final int MAX_VERSION = VERSION_BINARY;
+  public static final int HEADER_SIZE = 14;
+  public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+  private WireProtocol() {}
+
+  public static int negotiate(int requestedVersion) {
+    return Math.max(
+      VERSION_SERIALIZED,
+      Math.min(requestedVersion, MAX_VERSION)
+    );
+  }
+
+  public static byte[] encodePayload(int version, Object message)
+    throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (version == VERSION_BINARY) {
+      DataOutputStream out = new DataOutputStream(bytes);
+      MessageCodec.encode(message, out);
+      out.flush();
+    } else {
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(message);
+      out.flush();
+    }
+    return bytes.toByteArray();
+  }
+
+  public static Object decodePayload(int version, byte type, byte[] payload)
+    throws IOException {
+    if (version == VERSION_BINARY) {
+      DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(payload)
+      );
+      return MessageCodec.decode(type, in);
+    }
+    if (version != VERSION_SERIALIZED) {
+      throw new IOException("Unsupported protocol version: " + version);
+    }
+    try (
+      ObjectInputStream in = new ObjectInputStream(
+        new ByteArrayInputStream(payload)
+      )
+    ) {
+      return in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown class: " + e.getMessage(), e);
+    }
+  }
+
+  public static void writeHeader(
+    DataOutputStream out,
+    int version,
+    byte type,
+    long correlationId,
+    int length
+  ) throws IOException {
+    out.writeByte(version);
+    out.writeByte(type);
+    out.writeLong(correlationId);
+    out.writeInt(length);
+  }
+
+  public static void writeFrame(
+    DataOutputStream out,
+    int version,
+    long correlationId,
+    Object message
+  ) throws IOException {
+    byte[] payload = encodePayload(version, message);
+    writeHeader(
+      out,
+      version,
+      MessageCodec.typeOf(message),
+      correlationId,
+      payload.length
+    );
+    out.write(payload);
+  }
+
+  // Frame header plus the FileBlockAnswerMessage fields preceding its data,
+  // for answers whose data is written separately
+  public static byte[] encodeFileBlockAnswerHeader(
+    long correlationId,
+    FileBlockRequestMessage request,
+    int dataLength
+  ) throws IOException {
+    ByteArrayOutputStream answerHeader = new ByteArrayOutputStream();
+    MessageCodec.encodeFileBlockAnswerHeader(
+      request.getHash(),
+      request.getOffset(),
+      request.getLength(),
+      request.getIndex(),
+      dataLength,
+      false,
+      new DataOutputStream(answerHeader)
+    );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeHeader(
+      out,
+      VERSION_BINARY,
+      MessageCodec.FILE_BLOCK_ANSWER,
+      correlationId,
+      answerHeader.size() + dataLength
+    );
+    answerHeader.writeTo(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  public static CorrelatedMessage readFrame(DataInputStream in)
+    throws IOException {
+    int version = in.readUnsignedByte();
+    byte type = in.readByte();
+    long correlationId = in.readLong();
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Invalid frame length: " + length);
+    }
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return new CorrelatedMessage(
+      correlationId,
+      decodePayload(version, type, payload)
+    );
+  }
+}
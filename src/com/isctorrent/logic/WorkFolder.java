@@ -3,35 +3,116 @@ package com.isctorrent.logic;
 import com.isctorrent.gui.Alert;
 import com.isctorrent.logic.messages.*;
 import com.isctorrent.logic.models.*;
+import com.isctorrent.metrics.MetricsRegistry;
+import com.isctorrent.util.BlockCompression;
 import com.isctorrent.util.Config;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WorkFolder {
 
-  private final long BLOCK_SIZE = Config.BLOCK_SIZE;
+  private static final String PARTIAL_FILE_EXTENSION = ".part";
+  private static final String BITFIELD_FILE_EXTENSION = ".bitfield";
+  private static final String HASH_INDEX_FILE_NAME = ".isctorrent.index";
+  private static final int HASHING_THREADS = Config.HASHING_THREADS;
+  private static final int HASH_INDEX_SAVE_INTERVAL = 64; // files
+  private static final long WATCH_DEBOUNCE = Config.WATCH_DEBOUNCE;
+  private static final long BLOCK_CACHE_BUDGET = Config.BLOCK_CACHE_BUDGET;
+  private static final boolean MMAP_READS = Config.MMAP_READS;
+  private static final long MMAP_IDLE_TIMEOUT = Config.MMAP_IDLE_TIMEOUT;
+  private static final int COMPRESSION_SAMPLES = Config.COMPRESSION_SAMPLES;
+  private static final int COMPRESSION_SAMPLE_SIZE =
+    Config.COMPRESSION_SAMPLE_SIZE;
+  private static final double COMPRESSION_MAX_RATIO =
+    Config.COMPRESSION_MAX_RATIO;
   // Shared variables
   private File folder;
   // Hash -> FileMetadata
   private Map<String, FileMetadata> fileMetadataMap;
-  // Hash -> Offset -> FileBlock
-  private Map<String, Map<Long, FileBlock>> fileBlocksCache;
+  // Absolute path -> hash, guarded by fileMetadataMap
+  private Map<String, String> hashesByPath;
+  // Hash -> number of further paths with the same content, only for files
+  // found more than once. Guarded by fileMetadataMap.
+  private Map<String, Integer> extraCopies;
+  // Searched without holding fileMetadataMap
+  private FileNameIndex nameIndex;
+  private FileHashIndex hashIndex;
+  private FileIndexer indexer;
+  private BlockCache blockCache;
+  // Only used in mmap mode, replacing blockCache
+  private MappedFileRegistry mappedFiles;
+  // Hash -> open channel, shared by zero-copy transfers
+  private Map<String, FileChannel> fileChannels;
+  // Channel -> readers still using it, guarded by fileChannels. A channel
+  // dropped from fileChannels is closed once its last reader is done.
+  private Map<FileChannel, Integer> channelReaders;
+  // Hash -> whether its blocks are worth compressing, sampled on first use
+  private Map<String, Boolean> compressibleFiles;
 
   public WorkFolder(String path) {
     folder = new File(path);
     fileMetadataMap = new HashMap<>();
-    fileBlocksCache = new HashMap<>();
+    hashesByPath = new HashMap<>();
+    extraCopies = new HashMap<>();
+    nameIndex = new FileNameIndex();
+    hashIndex = FileHashIndex.load(
+      folder.toPath().resolve(HASH_INDEX_FILE_NAME)
+    );
+    indexer = new FileIndexer(HASHING_THREADS, hashIndex::save);
+    blockCache = new BlockCache(BLOCK_CACHE_BUDGET);
+    if (MMAP_READS) mappedFiles = new MappedFileRegistry(MMAP_IDLE_TIMEOUT);
+    fileChannels = new HashMap<>();
+    channelReaders = new HashMap<>();
+    compressibleFiles = new ConcurrentHashMap<>();
     refreshFileMetadataMap();
+    startWatcher();
+  }
+
+  private void startWatcher() {
+    FolderWatcher watcher = new FolderWatcher(
+      folder.toPath(),
+      WATCH_DEBOUNCE,
+      new FolderWatcher.Listener() {
+        @Override
+        public void fileChanged(File file) {
+          updateFile(file);
+        }
+
+        @Override
+        public void fileDeleted(File file) {
+          deleteFile(file);
+        }
+
+        @Override
+        public void overflow() {
+          refreshFileMetadataMap();
+        }
+      }
+    );
+    try {
+      watcher.start();
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to watch folder: " + folder);
+    }
   }
 
   private static String appendTimestampToFileName(
@@ -80,98 +161,412 @@ public class WorkFolder {
         }
       });
       // Update fileMetadataMap
-      synchronized (fileMetadataMap) {
-        FileMetadata newFileMetadata = new FileMetadata(newFile);
-        fileMetadataMap.put(newFileMetadata.getFileHash(), newFileMetadata);
-      }
+      addFileMetadata(indexFile(newFile));
+      hashIndex.save();
       System.out.println("File written successfully to " + path);
     } catch (IOException e) {
       System.err.println("Error writing the file: " + e.getMessage());
     }
   }
 
+  public Path getPartialFilePath(String fileHash) {
+    return folder.toPath().resolve("." + fileHash + PARTIAL_FILE_EXTENSION);
+  }
+
+  public Path getBitfieldPath(String fileHash) {
+    return folder.toPath().resolve("." + fileHash + BITFIELD_FILE_EXTENSION);
+  }
+
+  // Partial files and bitfields of unfinished downloads are not shared,
+  // and neither is the hash index
+  private static boolean isInternalFile(File file) {
+    String name = file.getName();
+    return (
+      name.startsWith(".") &&
+      (
+        name.endsWith(PARTIAL_FILE_EXTENSION) ||
+        name.contains(BITFIELD_FILE_EXTENSION) ||
+        name.startsWith(HASH_INDEX_FILE_NAME)
+      )
+    );
+  }
+
+  // Only files that changed since they were last indexed are hashed
+  private FileMetadata indexFile(File file) {
+    FileMetadata fileMetadata = hashIndex.get(file);
+    if (fileMetadata != null) return fileMetadata;
+    fileMetadata = new FileMetadata(file);
+    hashIndex.put(fileMetadata);
+    return fileMetadata;
+  }
+
+  // Called on the indexer's threads as each file finishes hashing
+  private void publishFile(FileMetadata fileMetadata) {
+    addFileMetadata(fileMetadata);
+    hashIndex.put(fileMetadata);
+    if (indexer.getHashedFiles() % HASH_INDEX_SAVE_INTERVAL == 0) {
+      hashIndex.save();
+    }
+  }
+
+  public FileIndexer getIndexer() {
+    return indexer;
+  }
+
+  public void deleteDownloadFile(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      System.err.println("Error deleting the file: " + e.getMessage());
+    }
+  }
+
+  // Hashes a finished download before it is put in place, or returns null
+  // if it cannot be read
+  public FileMetadata hashDownload(Path partialPath) {
+    try {
+      return new FileMetadata(partialPath.toFile());
+    } catch (RuntimeException e) {
+      System.err.println("[ERROR] Failed to hash download: " + partialPath);
+      return null;
+    }
+  }
+
+  // Atomically renames a finished download into place and starts sharing it
+  // under the hashes computed by hashDownload
+  public boolean completeDownload(
+    Path partialPath,
+    String path,
+    FileMetadata downloaded
+  ) {
+    Path target = Paths.get(path);
+    try {
+      try {
+        Files.move(partialPath, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(partialPath, target);
+      }
+    } catch (IOException e) {
+      System.err.println("Error writing the file: " + e.getMessage());
+      return false;
+    }
+    File file = target.toFile();
+    FileMetadata fileMetadata = new FileMetadata(
+      file,
+      downloaded.getFileSize(),
+      file.lastModified(),
+      downloaded.getFileHash(),
+      downloaded.getMerkleRoot(),
+      downloaded.getBlockHashes()
+    );
+    hashIndex.put(fileMetadata);
+    addFileMetadata(fileMetadata);
+    hashIndex.save();
+    System.out.println("File written successfully to " + path);
+    return true;
+  }
+
   public void refreshFileMetadataMap() {
-    synchronized (fileMetadataMap) {
-      if (folder.exists() && folder.isDirectory()) {
-        File[] files = folder.listFiles(File::isFile);
-        for (File file : files) {
-          FileMetadata fileMetadata = new FileMetadata(file);
-          fileMetadataMap.put(fileMetadata.getFileHash(), fileMetadata);
+    if (folder.exists() && folder.isDirectory()) {
+      File[] files = folder.listFiles(file ->
+        file.isFile() && !isInternalFile(file)
+      );
+      // Indexed files are shared right away, the rest once hashed
+      for (File file : files) {
+        FileMetadata fileMetadata = hashIndex.get(file);
+        if (fileMetadata != null) {
+          addFileMetadata(fileMetadata);
+        } else {
+          indexer.submit(file, this::publishFile);
         }
-      } else {
-        System.out.println(
-          "The directory is no longer valid: " + folder.getPath()
+      }
+      // Files deleted while nobody was watching
+      Set<String> paths = new HashSet<>();
+      for (File file : files) paths.add(file.getAbsolutePath());
+      List<String> deleted = new ArrayList<>();
+      synchronized (fileMetadataMap) {
+        for (String path : hashesByPath.keySet()) {
+          if (!paths.contains(path)) deleted.add(path);
+        }
+      }
+      deleted.forEach(path -> removeFile(new File(path)));
+      hashIndex.retainAll(Arrays.asList(files));
+      hashIndex.save();
+    } else {
+      System.out.println(
+        "The directory is no longer valid: " + folder.getPath()
+      );
+    }
+  }
+
+  private void updateFile(File file) {
+    if (!file.isFile() || isInternalFile(file)) return;
+    FileMetadata fileMetadata = hashIndex.get(file);
+    if (fileMetadata != null) {
+      addFileMetadata(fileMetadata);
+      return;
+    }
+    // The old content stops being shared until the new hash is ready
+    removeFile(file);
+    indexer.submit(file, this::publishFile);
+  }
+
+  private void deleteFile(File file) {
+    if (isInternalFile(file)) return;
+    removeFile(file);
+    hashIndex.remove(file);
+    hashIndex.save();
+  }
+
+  private void addFileMetadata(FileMetadata fileMetadata) {
+    String path = fileMetadata.getFile().getAbsolutePath();
+    String hash = fileMetadata.getFileHash();
+    String previousHash;
+    synchronized (fileMetadataMap) {
+      previousHash = hashesByPath.put(path, hash);
+      if (previousHash != null && !previousHash.equals(hash)) {
+        removeIfFromPath(previousHash, path);
+      }
+      if (!hash.equals(previousHash) && fileMetadataMap.containsKey(hash)) {
+        extraCopies.merge(hash, 1, Integer::sum);
+      }
+      fileMetadataMap.put(hash, fileMetadata);
+      nameIndex.put(fileMetadata);
+    }
+    if (previousHash != null && !previousHash.equals(hash)) {
+      invalidate(previousHash);
+    }
+  }
+
+  private void removeFile(File file) {
+    String path = file.getAbsolutePath();
+    String hash;
+    synchronized (fileMetadataMap) {
+      hash = hashesByPath.remove(path);
+      if (hash == null) return;
+      removeIfFromPath(hash, path);
+    }
+    invalidate(hash);
+  }
+
+  // Identical files share a hash. When the copy in the map goes, another
+  // copy still in the folder is shared in its place.
+  private void removeIfFromPath(String hash, String path) {
+    Integer copies = extraCopies.remove(hash);
+    if (copies != null && copies > 1) extraCopies.put(hash, copies - 1);
+    FileMetadata fileMetadata = fileMetadataMap.get(hash);
+    if (
+      fileMetadata == null ||
+      !fileMetadata.getFile().getAbsolutePath().equals(path)
+    ) {
+      return;
+    }
+    if (copies != null) {
+      for (Map.Entry<String, String> entry : hashesByPath.entrySet()) {
+        if (!entry.getValue().equals(hash)) continue;
+        File copy = new File(entry.getKey());
+        FileMetadata copyMetadata = new FileMetadata(
+          copy,
+          fileMetadata.getFileSize(),
+          copy.lastModified(),
+          hash,
+          fileMetadata.getMerkleRoot(),
+          fileMetadata.getBlockHashes()
         );
+        fileMetadataMap.put(hash, copyMetadata);
+        nameIndex.put(copyMetadata);
+        return;
       }
     }
+    fileMetadataMap.remove(hash);
+    nameIndex.remove(hash);
+  }
+
+  // Drops every cached view of a file's old content
+  private void invalidate(String hash) {
+    blockCache.invalidate(hash);
+    compressibleFiles.remove(hash);
+    if (mappedFiles != null) mappedFiles.invalidate(hash);
+    FileChannel channel;
+    synchronized (fileChannels) {
+      channel = fileChannels.remove(hash);
+      // Transfers in flight finish on the old channel
+      if (channel == null || channelReaders.containsKey(channel)) return;
+    }
+    closeFileChannel(hash, channel);
+  }
+
+  private void closeFileChannel(String hash, FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("[ERROR] Failed to close file of: " + hash);
+    }
   }
 
   public List<FileMetadata> searchFilesByKeyword(String keyword) {
-    keyword = keyword.toLowerCase();
-    List<FileMetadata> result = new ArrayList<>();
+    return nameIndex.search(keyword);
+  }
+
+  public FileMetadata getFileMetadata(String hash) {
     synchronized (fileMetadataMap) {
-      for (Map.Entry<String, FileMetadata> entry : this.fileMetadataMap.entrySet()) {
-        FileMetadata fileMetadata = entry.getValue();
-        if (fileMetadata.getFileName().contains(keyword)) {
-          result.add(entry.getValue());
-        }
-      }
+      return fileMetadataMap.get(hash);
+    }
+  }
+
+  public BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  // The block cache only serves connections that zero-copy serving does not
+  // (-Disctorrent.zeroCopy=false, or peers on the serialized encoding)
+  public void registerMetrics(MetricsRegistry metrics) {
+    metrics.gauge("block_cache_hits", blockCache::getHits);
+    metrics.gauge("block_cache_misses", blockCache::getMisses);
+    metrics.gauge("block_cache_evictions", blockCache::getEvictions);
+    metrics.gauge("block_cache_hit_ratio", blockCache::getHitRate);
+    metrics.gauge("block_cache_size_bytes", blockCache::getSizeBytes);
+    metrics.gauge("block_cache_budget_bytes", blockCache::getBudgetBytes);
+    metrics.gauge("block_cache_blocks", blockCache::getBlockCount);
+    if (mappedFiles != null) {
+      metrics.gauge("mapped_files", mappedFiles::getMappedFileCount);
     }
-    return result;
   }
 
-  public synchronized FileBlock getFileBlock(FileBlockRequestMessage request) {
+  public FileBlock getFileBlock(FileBlockRequestMessage request) {
     String hash = request.getHash();
     long offset = request.getOffset();
-    synchronized (fileBlocksCache) {
-      Map<Long, FileBlock> fileBlocksMap = this.fileBlocksCache.get(hash);
-      if (fileBlocksMap != null) return fileBlocksMap.get(offset);
-      synchronized (fileMetadataMap) {
-        // Cache miss
-        FileMetadata fileMetadata = this.fileMetadataMap.get(hash);
-        if (fileMetadata != null) {
-          Map<Long, FileBlock> newFileBlocksMap = getFileBlocksMap(
-            fileMetadata
-          );
-          this.fileBlocksCache.put(hash, newFileBlocksMap);
-          return newFileBlocksMap.get(offset);
-        }
-      }
+    long length = request.getLength();
+    if (mappedFiles != null) return getMappedFileBlock(hash, offset, length);
+    FileBlock block = blockCache.get(hash, offset, length);
+    if (block != null) return block;
+    // Cache miss
+    block = readFileBlock(hash, offset, length);
+    if (block != null) blockCache.put(hash, length, block);
+    return block;
+  }
+
+  // Mapped blocks hold a reference on their mapping until released
+  public void releaseFileBlock(String hash) {
+    if (mappedFiles != null) mappedFiles.release(hash);
+  }
+
+  private FileBlock getMappedFileBlock(String hash, long offset, long length) {
+    FileMetadata fileMetadata;
+    synchronized (fileMetadataMap) {
+      fileMetadata = fileMetadataMap.get(hash);
+    }
+    if (fileMetadata == null) {
+      System.out.println("[ERROR] Hash not found: " + hash);
+      return null;
     }
-    System.out.println("[ERROR] Hash not found: " + hash);
-    return null;
+    FileBlock block = mappedFiles.slice(
+      hash,
+      fileMetadata.getFile(),
+      offset,
+      length
+    );
+    // Blocks too large to slice are read onto the heap instead
+    return block != null ? block : readFileBlock(hash, offset, length);
   }
 
-  private synchronized Map<Long, FileBlock> getFileBlocksMap(
-    FileMetadata fileMetadata
-  ) {
-    Map<Long, FileBlock> newFileBlocksMap = new HashMap<>();
-    File file = fileMetadata.getFile();
-    RandomAccessFile randomAccessFile = null;
+  private FileBlock readFileBlock(String hash, long offset, long length) {
+    FileChannel channel = acquireFileChannel(hash);
+    if (channel == null) return null;
     try {
-      randomAccessFile = new RandomAccessFile(file, "r");
-      FileChannel channel = randomAccessFile.getChannel();
       long size = channel.size();
-      long offset = 0;
-      while (offset < size) {
-        int length = (int) Math.min(BLOCK_SIZE, size - offset);
-        ByteBuffer buffer = ByteBuffer.allocate(length);
-        channel.position(offset);
-        channel.read(buffer);
-        FileBlock block = new FileBlock(offset, buffer.array());
-        newFileBlocksMap.put(offset, block);
-        offset += BLOCK_SIZE;
+      if (offset < 0 || offset >= size) {
+        System.out.println("[ERROR] Offset out of range: " + offset);
+        return null;
       }
-    } catch (Exception e) {
-      System.out.println("[ERROR] Failed to load file: " + file.getName());
+      ByteBuffer buffer = ByteBuffer.allocate(
+        (int) Math.min(length, size - offset)
+      );
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) break;
+      }
+      return new FileBlock(offset, buffer.array());
+    } catch (IOException e) {
+      System.out.println("[ERROR] Failed to read block of: " + hash);
       return null;
     } finally {
-      if (randomAccessFile != null) try {
-        randomAccessFile.close();
-      } catch (IOException e) {
-        System.out.println("[ERROR] Failed to close file: " + file.getName());
+      releaseFileChannel(hash, channel);
+    }
+  }
+
+  public boolean isCompressible(String hash) {
+    Boolean compressible = compressibleFiles.get(hash);
+    if (compressible != null) return compressible;
+    FileChannel channel = acquireFileChannel(hash);
+    if (channel == null) return false;
+    try {
+      compressible =
+        BlockCompression.isCompressible(
+          channel,
+          COMPRESSION_SAMPLES,
+          COMPRESSION_SAMPLE_SIZE,
+          COMPRESSION_MAX_RATIO
+        );
+    } catch (IOException e) {
+      System.out.println("[ERROR] Failed to sample file of: " + hash);
+      return false;
+    } finally {
+      releaseFileChannel(hash, channel);
+    }
+    if (!compressible) {
+      System.out.println("[INFO] Incompressible, sent raw: " + hash);
+    }
+    compressibleFiles.put(hash, compressible);
+    return compressible;
+  }
+
+  // Every acquired channel must be released, and stays open until then even
+  // if the file changes
+  public FileChannel acquireFileChannel(String hash) {
+    synchronized (fileChannels) {
+      FileChannel channel = fileChannels.get(hash);
+      if (channel == null || !channel.isOpen()) channel = openFileChannel(hash);
+      if (channel != null) channelReaders.merge(channel, 1, Integer::sum);
+      return channel;
+    }
+  }
+
+  public void releaseFileChannel(String hash, FileChannel channel) {
+    synchronized (fileChannels) {
+      Integer readers = channelReaders.get(channel);
+      if (readers == null) return;
+      if (readers > 1) {
+        channelReaders.put(channel, readers - 1);
+        return;
       }
+      channelReaders.remove(channel);
+      if (fileChannels.get(hash) == channel) return;
+    }
+    closeFileChannel(hash, channel);
+  }
+
+  // Called with fileChannels held
+  private FileChannel openFileChannel(String hash) {
+    FileMetadata fileMetadata;
+    synchronized (fileMetadataMap) {
+      fileMetadata = fileMetadataMap.get(hash);
+    }
+    if (fileMetadata == null) {
+      System.out.println("[ERROR] Hash not found: " + hash);
+      return null;
+    }
+    try {
+      FileChannel channel = FileChannel.open(
+        fileMetadata.getFile().toPath(),
+        StandardOpenOption.READ
+      );
+      fileChannels.put(hash, channel);
+      return channel;
+    } catch (IOException e) {
+      System.out.println(
+        "[ERROR] Failed to open file: " + fileMetadata.getFileName()
+      );
+      return null;
     }
-    return newFileBlocksMap;
   }
 }
@@ -0,0 +1,36 @@
+package com.isctorrent.logic.messages;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class BlockHashesAnswerMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private String hash;
+  // SHA-256 of every block, in block index order
+  private List<byte[]> blockHashes;
+
+  public BlockHashesAnswerMessage(String hash, List<byte[]> blockHashes) {
+    this.hash = hash;
+    this.blockHashes = blockHashes;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  public List<byte[]> getBlockHashes() {
+    return blockHashes;
+  }
+
+  @Override
+  public String toString() {
+    return (
+      "BlockHashesAnswerMessage{hash='" +
+      hash +
+      "', blocks=" +
+      blockHashes.size() +
+      "}"
+    );
+  }
+}
@@ -0,0 +1,22 @@
+package com.isctorrent.logic.messages;
+
+import java.io.Serializable;
+
+public class BlockHashesRequestMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private String hash;
+
+  public BlockHashesRequestMessage(String hash) {
+    this.hash = hash;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "BlockHashesRequestMessage{hash='" + hash + "'}";
+  }
+}
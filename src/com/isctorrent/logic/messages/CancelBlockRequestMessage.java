@@ -0,0 +1,15 @@
+package com.isctorrent.logic.messages;
+
+import java.io.Serializable;
+
+// Withdraws the FileBlockRequestMessage sent with the same correlation id on
+// the same connection, once another peer delivered the block. Not answered.
+public class CancelBlockRequestMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public String toString() {
+    return "CancelBlockRequestMessage{}";
+  }
+}
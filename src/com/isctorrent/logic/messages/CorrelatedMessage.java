@@ -0,0 +1,34 @@
+package com.isctorrent.logic.messages;
+
+import java.io.Serializable;
+
+public class CorrelatedMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private long correlationId;
+  private Object payload;
+
+  public CorrelatedMessage(long correlationId, Object payload) {
+    this.correlationId = correlationId;
+    this.payload = payload;
+  }
+
+  public long getCorrelationId() {
+    return correlationId;
+  }
+
+  public Object getPayload() {
+    return payload;
+  }
+
+  @Override
+  public String toString() {
+    return (
+      "CorrelatedMessage{correlationId=" +
+      correlationId +
+      ", payload=" +
+      payload +
+      "}"
+    );
+  }
+}
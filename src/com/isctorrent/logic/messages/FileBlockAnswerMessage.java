@@ -10,13 +10,20 @@ public class FileBlockAnswerMessage implements Serializable{
     private long length;
     private int index;
     private byte[] data;
+    // Data deflated to fewer than length bytes, only sent where negotiated
+    private boolean compressed;
 
     public FileBlockAnswerMessage(String hash, long offset, long length, int index, byte[] data) {
+        this(hash, offset, length, index, data, false);
+    }
+
+    public FileBlockAnswerMessage(String hash, long offset, long length, int index, byte[] data, boolean compressed) {
         this.hash = hash;
         this.offset = offset;
         this.length = length;
         this.index = index;
         this.data = data;
+        this.compressed = compressed;
     }
 
     public String getHash() {
@@ -38,6 +45,10 @@ public class FileBlockAnswerMessage implements Serializable{
     public byte[] getData() {
         return data;
     }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
   
     @Override
     public String toString() {
@@ -46,6 +57,7 @@ public class FileBlockAnswerMessage implements Serializable{
         ", offset=" + offset +
         ", length=" + length +
         ", index=" + index +
+        (compressed ? ", compressed=" + data.length : "") +
         '}';
     }
 
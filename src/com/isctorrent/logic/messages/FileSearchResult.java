@@ -10,6 +10,8 @@ public class FileSearchResult implements Serializable {
   private String fileName;
   private long fileSize;
   private String fileHash;
+  private String merkleRoot;
+  private int blockSize;
   private String hostName;
   private int port;
 
@@ -18,6 +20,8 @@ public class FileSearchResult implements Serializable {
     String fileName,
     long fileSize,
     String fileHash,
+    String merkleRoot,
+    int blockSize,
     String hostName,
     int port
   ) {
@@ -25,6 +29,8 @@ public class FileSearchResult implements Serializable {
     this.fileName = fileName;
     this.fileSize = fileSize;
     this.fileHash = fileHash;
+    this.merkleRoot = merkleRoot;
+    this.blockSize = blockSize;
     this.hostName = hostName;
     this.port = port;
   }
@@ -61,6 +67,14 @@ public class FileSearchResult implements Serializable {
     return fileHash;
   }
 
+  public String getMerkleRoot() {
+    return merkleRoot;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
   public String getHostName() {
     return hostName;
   }
@@ -0,0 +1,333 @@
+package com.isctorrent.logic.messages;
+
+import com.isctorrent.logic.models.NodeId;
+import com.isctorrent.util.BlockCompression;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageCodec {
+
+  public static final byte NEW_CONNECTION_REQUEST = 1;
+  public static final byte NEW_CONNECTION_REQUEST_ACK = 2;
+  public static final byte WORD_SEARCH = 3;
+  public static final byte FILE_SEARCH_RESULTS = 4;
+  public static final byte FILE_BLOCK_REQUEST = 5;
+  public static final byte FILE_BLOCK_ANSWER = 6;
+  public static final byte BLOCK_HASHES_REQUEST = 7;
+  public static final byte BLOCK_HASHES_ANSWER = 8;
+  public static final byte CANCEL_BLOCK_REQUEST = 9;
+
+  private MessageCodec() {}
+
+  public static byte typeOf(Object message) {
+    if (message instanceof NewConnectionRequest) return NEW_CONNECTION_REQUEST;
+    if (
+      message instanceof NewConnectionRequestAck
+    ) return NEW_CONNECTION_REQUEST_ACK;
+    if (message instanceof WordSearchMessage) return WORD_SEARCH;
+    if (message instanceof List<?>) return FILE_SEARCH_RESULTS;
+    if (message instanceof FileBlockRequestMessage) return FILE_BLOCK_REQUEST;
+    if (message instanceof FileBlockAnswerMessage) return FILE_BLOCK_ANSWER;
+    if (
+      message instanceof BlockHashesRequestMessage
+    ) return BLOCK_HASHES_REQUEST;
+    if (
+      message instanceof BlockHashesAnswerMessage
+    ) return BLOCK_HASHES_ANSWER;
+    if (
+      message instanceof CancelBlockRequestMessage
+    ) return CANCEL_BLOCK_REQUEST;
+    throw new IllegalArgumentException("No codec for: " + message);
+  }
+
+  public static void encode(Object message, DataOutputStream out)
+    throws IOException {
+    switch (typeOf(message)) {
+      case NEW_CONNECTION_REQUEST:
+        encodeNewConnectionRequest((NewConnectionRequest) message, out);
+        break;
+      case NEW_CONNECTION_REQUEST_ACK:
+        encodeNewConnectionRequestAck((NewConnectionRequestAck) message, out);
+        break;
+      case WORD_SEARCH:
+        encodeWordSearchMessage((WordSearchMessage) message, out);
+        break;
+      case FILE_SEARCH_RESULTS:
+        encodeFileSearchResults((List<?>) message, out);
+        break;
+      case FILE_BLOCK_REQUEST:
+        encodeFileBlockRequestMessage((FileBlockRequestMessage) message, out);
+        break;
+      case FILE_BLOCK_ANSWER:
+        encodeFileBlockAnswerMessage((FileBlockAnswerMessage) message, out);
+        break;
+      case BLOCK_HASHES_REQUEST:
+        writeString(((BlockHashesRequestMessage) message).getHash(), out);
+        break;
+      case BLOCK_HASHES_ANSWER:
+        encodeBlockHashesAnswerMessage(
+          (BlockHashesAnswerMessage) message,
+          out
+        );
+        break;
+      case CANCEL_BLOCK_REQUEST:
+        // Nothing but the correlation id in the frame header
+        break;
+    }
+  }
+
+  public static Object decode(byte type, DataInputStream in)
+    throws IOException {
+    switch (type) {
+      case NEW_CONNECTION_REQUEST:
+        return decodeNewConnectionRequest(in);
+      case NEW_CONNECTION_REQUEST_ACK:
+        return decodeNewConnectionRequestAck(in);
+      case WORD_SEARCH:
+        return decodeWordSearchMessage(in);
+      case FILE_SEARCH_RESULTS:
+        return decodeFileSearchResults(in);
+      case FILE_BLOCK_REQUEST:
+        return decodeFileBlockRequestMessage(in);
+      case FILE_BLOCK_ANSWER:
+        return decodeFileBlockAnswerMessage(in);
+      case BLOCK_HASHES_REQUEST:
+        return new BlockHashesRequestMessage(readString(in));
+      case BLOCK_HASHES_ANSWER:
+        return decodeBlockHashesAnswerMessage(in);
+      case CANCEL_BLOCK_REQUEST:
+        return new CancelBlockRequestMessage();
+      default:
+        throw new IOException("Unknown message type: " + type);
+    }
+  }
+
+  private static void writeString(String value, DataOutputStream out)
+    throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    // Payloads are decoded from a fully read frame, so available() is exact
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Invalid length: " + length);
+    }
+    return length;
+  }
+
+  private static void encodeNewConnectionRequest(
+    NewConnectionRequest request,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(request.getHostName(), out);
+    out.writeInt(request.getPort());
+    out.writeByte(request.getProtocolVersion());
+    out.writeBoolean(request.isDataConnection());
+    out.writeBoolean(request.isCompression());
+  }
+
+  private static NewConnectionRequest decodeNewConnectionRequest(
+    DataInputStream in
+  ) throws IOException {
+    return new NewConnectionRequest(
+      readString(in),
+      in.readInt(),
+      in.readUnsignedByte(),
+      in.readBoolean(),
+      in.readBoolean()
+    );
+  }
+
+  private static void encodeNewConnectionRequestAck(
+    NewConnectionRequestAck ack,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(ack.getNodeId().getHostName(), out);
+    out.writeInt(ack.getNodeId().getPort());
+    out.writeByte(ack.getProtocolVersion());
+    out.writeBoolean(ack.isCompression());
+  }
+
+  private static NewConnectionRequestAck decodeNewConnectionRequestAck(
+    DataInputStream in
+  ) throws IOException {
+    NodeId nodeId = new NodeId(readString(in), in.readInt());
+    return new NewConnectionRequestAck(
+      nodeId,
+      in.readUnsignedByte(),
+      in.readBoolean()
+    );
+  }
+
+  private static void encodeWordSearchMessage(
+    WordSearchMessage message,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(message.getWord(), out);
+    writeString(message.getSenderIpAddress(), out);
+    out.writeInt(message.getSenderPort());
+  }
+
+  private static WordSearchMessage decodeWordSearchMessage(DataInputStream in)
+    throws IOException {
+    return new WordSearchMessage(readString(in), readString(in), in.readInt());
+  }
+
+  // A results list always answers a single WordSearchMessage, so the
+  // originating message is written once instead of once per result
+  private static void encodeFileSearchResults(
+    List<?> results,
+    DataOutputStream out
+  ) throws IOException {
+    out.writeInt(results.size());
+    if (results.isEmpty()) return;
+    encodeWordSearchMessage(
+      ((FileSearchResult) results.get(0)).getMessage(),
+      out
+    );
+    for (Object object : results) {
+      FileSearchResult result = (FileSearchResult) object;
+      writeString(result.getFileName(), out);
+      out.writeLong(result.getFileSize());
+      writeString(result.getFileHash(), out);
+      writeString(result.getMerkleRoot(), out);
+      out.writeInt(result.getBlockSize());
+      writeString(result.getHostName(), out);
+      out.writeInt(result.getPort());
+    }
+  }
+
+  private static List<FileSearchResult> decodeFileSearchResults(
+    DataInputStream in
+  ) throws IOException {
+    int size = readLength(in);
+    List<FileSearchResult> results = new ArrayList<>(size);
+    if (size == 0) return results;
+    WordSearchMessage message = decodeWordSearchMessage(in);
+    for (int i = 0; i < size; i++) {
+      results.add(
+        new FileSearchResult(
+          message,
+          readString(in),
+          in.readLong(),
+          readString(in),
+          readString(in),
+          in.readInt(),
+          readString(in),
+          in.readInt()
+        )
+      );
+    }
+    return results;
+  }
+
+  private static void encodeFileBlockRequestMessage(
+    FileBlockRequestMessage request,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(request.getHash(), out);
+    out.writeLong(request.getOffset());
+    out.writeLong(request.getLength());
+    out.writeInt(request.getIndex());
+  }
+
+  private static FileBlockRequestMessage decodeFileBlockRequestMessage(
+    DataInputStream in
+  ) throws IOException {
+    return new FileBlockRequestMessage(
+      readString(in),
+      in.readLong(),
+      in.readLong(),
+      in.readInt()
+    );
+  }
+
+  private static void encodeFileBlockAnswerMessage(
+    FileBlockAnswerMessage answer,
+    DataOutputStream out
+  ) throws IOException {
+    encodeFileBlockAnswerHeader(
+      answer.getHash(),
+      answer.getOffset(),
+      answer.getLength(),
+      answer.getIndex(),
+      answer.getData().length,
+      answer.isCompressed(),
+      out
+    );
+    out.write(answer.getData());
+  }
+
+  // Everything in a FileBlockAnswerMessage payload that precedes the data,
+  // so the data itself can be sent straight from a file
+  public static void encodeFileBlockAnswerHeader(
+    String hash,
+    long offset,
+    long length,
+    int index,
+    int dataLength,
+    boolean compressed,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(hash, out);
+    out.writeLong(offset);
+    out.writeLong(length);
+    out.writeInt(index);
+    out.writeBoolean(compressed);
+    out.writeInt(dataLength);
+  }
+
+  private static FileBlockAnswerMessage decodeFileBlockAnswerMessage(
+    DataInputStream in
+  ) throws IOException {
+    String hash = readString(in);
+    long offset = in.readLong();
+    long length = in.readLong();
+    int index = in.readInt();
+    boolean compressed = in.readBoolean();
+    byte[] data = new byte[readLength(in)];
+    in.readFully(data);
+    // Inflated here, so receivers only ever see the original data
+    if (compressed) data = BlockCompression.decompress(data, length);
+    return new FileBlockAnswerMessage(hash, offset, length, index, data);
+  }
+
+  private static void encodeBlockHashesAnswerMessage(
+    BlockHashesAnswerMessage answer,
+    DataOutputStream out
+  ) throws IOException {
+    writeString(answer.getHash(), out);
+    out.writeInt(answer.getBlockHashes().size());
+    for (byte[] blockHash : answer.getBlockHashes()) {
+      out.writeInt(blockHash.length);
+      out.write(blockHash);
+    }
+  }
+
+  private static BlockHashesAnswerMessage decodeBlockHashesAnswerMessage(
+    DataInputStream in
+  ) throws IOException {
+    String hash = readString(in);
+    int size = readLength(in);
+    List<byte[]> blockHashes = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      byte[] blockHash = new byte[readLength(in)];
+      in.readFully(blockHash);
+      blockHashes.add(blockHash);
+    }
+    return new BlockHashesAnswerMessage(hash, blockHashes);
+  }
+}
@@ -6,10 +6,23 @@ public class NewConnectionRequest implements Serializable {
     private static final long serialVersionUID = 1L;
     private String hostName;
     private int port;
+    private int protocolVersion;
+    // An extra connection of an existing peer, or the connection back to a
+    // peer that connected first. The receiver does not connect back to it.
+    private boolean dataConnection;
+    // Offers compressed block answers, used only if the peer accepts
+    private boolean compression;
 
-    public NewConnectionRequest(String hostName, int port) {
+    public NewConnectionRequest(String hostName, int port, int protocolVersion) {
+        this(hostName, port, protocolVersion, false, false);
+    }
+
+    public NewConnectionRequest(String hostName, int port, int protocolVersion, boolean dataConnection, boolean compression) {
         this.hostName = hostName;
         this.port = port;
+        this.protocolVersion = protocolVersion;
+        this.dataConnection = dataConnection;
+        this.compression = compression;
     }
 
     public String getHostName() {
@@ -20,9 +33,21 @@ public class NewConnectionRequest implements Serializable {
         return port;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean isDataConnection() {
+        return dataConnection;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
     @Override
     public String toString() {
-        return "NewConnectionRequest{hostName='" + hostName + "', port=" + port + "}";
+        return "NewConnectionRequest{hostName='" + hostName + "', port=" + port + ", protocolVersion=" + protocolVersion + ", dataConnection=" + dataConnection + ", compression=" + compression + "}";
     }
 }
 
@@ -7,17 +7,42 @@ public class NewConnectionRequestAck implements Serializable {
 
   private static final long serialVersionUID = 1L;
   private NodeId nodeId;
+  private int protocolVersion;
+  // Whether block answers on this connection may be compressed
+  private boolean compression;
 
-  public NewConnectionRequestAck(NodeId nodeId) {
+  public NewConnectionRequestAck(
+    NodeId nodeId,
+    int protocolVersion,
+    boolean compression
+  ) {
     this.nodeId = nodeId;
+    this.protocolVersion = protocolVersion;
+    this.compression = compression;
   }
 
   public NodeId getNodeId() {
     return nodeId;
   }
 
+  public int getProtocolVersion() {
+    return protocolVersion;
+  }
+
+  public boolean isCompression() {
+    return compression;
+  }
+
   @Override
   public String toString() {
-    return "NewConnectionRequestAck{nodeId='" + nodeId + "}";
+    return (
+      "NewConnectionRequestAck{nodeId='" +
+      nodeId +
+      ", protocolVersion=" +
+      protocolVersion +
+      ", compression=" +
+      compression +
+      "}"
+    );
   }
 }
@@ -1,19 +1,45 @@
 package com.isctorrent.logic.models;
 
+import java.nio.ByteBuffer;
+
 public class FileBlock {
     private long offset;
     private byte[] data;
+    // Set instead of data when the block is a slice of a memory-mapped file
+    private ByteBuffer buffer;
 
     public FileBlock(long offset, byte[] data) {
         this.offset = offset;
         this.data = data;
     }
 
+    public FileBlock(long offset, ByteBuffer buffer) {
+        this.offset = offset;
+        this.buffer = buffer;
+    }
+
     public long getOffset() {
         return offset;
     }
 
+    // Mapped blocks are copied to the heap on every call
     public byte[] getData() {
-        return data;
+        if (data != null)
+            return data;
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+    public ByteBuffer getBuffer() {
+        return data != null ? ByteBuffer.wrap(data) : buffer.duplicate();
+    }
+
+    public int getLength() {
+        return data != null ? data.length : buffer.remaining();
+    }
+
+    public boolean isMapped() {
+        return buffer != null;
     }
-}
\ No newline at end of file
+}
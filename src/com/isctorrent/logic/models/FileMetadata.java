@@ -1,26 +1,46 @@
 package com.isctorrent.logic.models;
 
+import com.isctorrent.util.Config;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class FileMetadata {
 
   private static final String HASH_ALGORITHM = "SHA-256";
+  private static final int MIN_BLOCK_SIZE = Config.MIN_BLOCK_SIZE;
+  private static final int MAX_BLOCK_SIZE = Config.MAX_BLOCK_SIZE;
+  private static final int TARGET_BLOCK_COUNT = Config.TARGET_BLOCK_COUNT;
+  private static final int HASHING_BUFFER_SIZE = Config.HASHING_BUFFER_SIZE;
+  // Direct buffers are costly to allocate, so each hashing thread keeps one
+  private static final ThreadLocal<ByteBuffer> HASHING_BUFFER =
+    ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASHING_BUFFER_SIZE)
+    );
   private final File file;
   private String fileName;
   private long fileSize;
+  private long lastModified;
+  private int blockSize;
   private String fileHash;
+  private List<byte[]> blockHashes;
+  private String merkleRoot;
 
   public FileMetadata(File file) {
     this.file = file;
     this.fileName = file.getName();
     this.fileSize = file.length();
+    // Taken before hashing, so a write during hashing is noticed later
+    this.lastModified = file.lastModified();
+    this.blockSize = blockSizeFor(fileSize);
     try {
-      this.fileHash = computeHash(file.getAbsolutePath(), HASH_ALGORITHM);
+      computeHashes();
     } catch (Exception e) {
       throw new RuntimeException(
         "Error computing file hash: " + e.getMessage(),
@@ -29,6 +49,25 @@ public class FileMetadata {
     }
   }
 
+  // Hashes previously computed for this exact file
+  public FileMetadata(
+    File file,
+    long fileSize,
+    long lastModified,
+    String fileHash,
+    String merkleRoot,
+    List<byte[]> blockHashes
+  ) {
+    this.file = file;
+    this.fileName = file.getName();
+    this.fileSize = fileSize;
+    this.lastModified = lastModified;
+    this.blockSize = blockSizeFor(fileSize);
+    this.fileHash = fileHash;
+    this.merkleRoot = merkleRoot;
+    this.blockHashes = blockHashes;
+  }
+
   @Override
   public String toString() {
     return (
@@ -50,6 +89,14 @@ public class FileMetadata {
     return fileSize;
   }
 
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
   public String getFileHash() {
     return fileHash;
   }
@@ -58,22 +105,61 @@ public class FileMetadata {
     return file;
   }
 
-  public static String computeHash(String path, String algorithm)
-    throws NoSuchAlgorithmException, FileNotFoundException, IOException {
-    MessageDigest digest;
-    digest = MessageDigest.getInstance(algorithm);
-    try (FileInputStream fis = new FileInputStream(path)) {
-      byte[] buffer = new byte[1024];
-      int bytesRead;
-      while ((bytesRead = fis.read(buffer)) != -1) {
-        digest.update(buffer, 0, bytesRead);
+  public List<byte[]> getBlockHashes() {
+    return blockHashes;
+  }
+
+  public String getMerkleRoot() {
+    return merkleRoot;
+  }
+
+  // Whole-file hash and per-block hashes, in a single pass over the file
+  private void computeHashes() throws NoSuchAlgorithmException, IOException {
+    MessageDigest fileDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+    MessageDigest blockDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+    List<byte[]> hashes = new ArrayList<>();
+    ByteBuffer buffer = HASHING_BUFFER.get();
+    try (
+      FileChannel channel = FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.READ
+      )
+    ) {
+      long position = 0;
+      boolean endOfFile = false;
+      while (!endOfFile) {
+        // The buffer is filled completely, so only the last block is short
+        buffer.clear();
+        while (buffer.hasRemaining() && !endOfFile) {
+          endOfFile = channel.read(buffer, position + buffer.position()) < 0;
+        }
+        if (buffer.position() == 0) break;
+        position += buffer.position();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          int length = Math.min(blockSize, buffer.remaining());
+          ByteBuffer block = buffer.duplicate();
+          block.limit(block.position() + length);
+          buffer.position(block.limit());
+          blockDigest.update(block.duplicate());
+          fileDigest.update(block);
+          hashes.add(blockDigest.digest());
+        }
       }
     }
-    StringBuilder hexString = new StringBuilder();
-    byte[] hashBytes = digest.digest();
-    for (byte b : hashBytes) {
-      hexString.append(String.format("%02x", b));
+    this.fileHash = MerkleTree.toHex(fileDigest.digest());
+    this.blockHashes = Collections.unmodifiableList(hashes);
+    this.merkleRoot = MerkleTree.toHex(MerkleTree.computeRoot(hashes));
+  }
+
+  // Powers of two, so every block size divides the hashing buffer
+  public static int blockSizeFor(long fileSize) {
+    long blockSize = MIN_BLOCK_SIZE;
+    while (
+      blockSize < MAX_BLOCK_SIZE && fileSize > blockSize * TARGET_BLOCK_COUNT
+    ) {
+      blockSize *= 2;
     }
-    return hexString.toString();
+    return (int) blockSize;
   }
 }
@@ -0,0 +1,57 @@
+package com.isctorrent.logic.models;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary SHA-256 hash tree over the block hashes of a file. A level with an
+// odd number of nodes promotes its last node unchanged.
+public class MerkleTree {
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private MerkleTree() {}
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " not available", e);
+    }
+  }
+
+  public static byte[] hashBlock(byte[] data, int offset, int length) {
+    MessageDigest digest = newDigest();
+    digest.update(data, offset, length);
+    return digest.digest();
+  }
+
+  public static byte[] computeRoot(List<byte[]> leaves) {
+    MessageDigest digest = newDigest();
+    if (leaves.isEmpty()) return digest.digest();
+    List<byte[]> level = leaves;
+    while (level.size() > 1) {
+      List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 == level.size()) {
+          parents.add(level.get(i));
+        } else {
+          digest.update(level.get(i));
+          digest.update(level.get(i + 1));
+          parents.add(digest.digest());
+        }
+      }
+      level = parents;
+    }
+    return level.get(0);
+  }
+
+  public static String toHex(byte[] bytes) {
+    StringBuilder hexString = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hexString.append(String.format("%02x", b));
+    }
+    return hexString.toString();
+  }
+}
@@ -15,6 +15,14 @@ public class NodeId implements Serializable {
         this.id = hostName + ":" + port;
     }
 
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
     public String getId() {
         return id;
     }
@@ -0,0 +1,21 @@
+package com.isctorrent.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A count that only goes up, cheap to update from many threads
+public class Counter {
+
+  private final LongAdder value = new LongAdder();
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void add(long amount) {
+    value.add(amount);
+  }
+
+  public long get() {
+    return value.sum();
+  }
+}
@@ -0,0 +1,94 @@
+package com.isctorrent.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in milliseconds, counted in fixed buckets. Quantiles are read
+// as the upper bound of the bucket they fall in.
+public class Histogram {
+
+  private static final double[] BOUNDS = {
+    0.5,
+    1,
+    2.5,
+    5,
+    10,
+    25,
+    50,
+    100,
+    250,
+    500,
+    1000,
+    2500,
+    5000,
+    10000,
+  };
+
+  // One more than BOUNDS, the last one unbounded
+  private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+  private final DoubleAdder sum = new DoubleAdder();
+
+  public Histogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(double millis) {
+    int i = 0;
+    while (i < BOUNDS.length && millis > BOUNDS[i]) i++;
+    buckets[i].increment();
+    sum.add(millis);
+  }
+
+  public void recordNanos(long nanos) {
+    record(nanos / 1_000_000.0);
+  }
+
+  public static double[] getBounds() {
+    return BOUNDS.clone();
+  }
+
+  // Counts per bucket, not cumulative
+  public long[] getBucketCounts() {
+    long[] counts = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  public double getSum() {
+    return sum.sum();
+  }
+
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : getSum() / count;
+  }
+
+  // Infinity if the quantile falls beyond the last bound
+  public double getQuantile(double quantile) {
+    long[] counts = getBucketCounts();
+    long total = 0;
+    for (long count : counts) total += count;
+    if (total == 0) return 0;
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return i < BOUNDS.length ? BOUNDS[i] : Double.POSITIVE_INFINITY;
+      }
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+}
@@ -0,0 +1,60 @@
+package com.isctorrent.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class MetricsExporter {
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private MetricsExporter() {}
+
+  // Replaces an MBean left under the same name, e.g. by a previous node
+  public static ObjectName registerMBean(
+    MetricsRegistry registry,
+    String objectName
+  ) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(objectName);
+    if (server.isRegistered(name)) server.unregisterMBean(name);
+    server.registerMBean(new MetricsMBean(registry), name);
+    return name;
+  }
+
+  // Serves the registry as text on http://localhost:<port>/metrics, only
+  // reachable from the host itself
+  public static HttpServer startHttpServer(MetricsRegistry registry, int port)
+    throws IOException {
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+      0
+    );
+    server.createContext(
+      "/metrics",
+      exchange -> {
+        try (exchange) {
+          if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+          }
+          StringWriter text = new StringWriter();
+          registry.writeText(text);
+          byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+          exchange.sendResponseHeaders(200, body.length);
+          exchange.getResponseBody().write(body);
+        }
+      }
+    );
+    server.start();
+    return server;
+  }
+}
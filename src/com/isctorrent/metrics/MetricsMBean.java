@@ -0,0 +1,126 @@
+package com.isctorrent.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.management.*;
+
+// Exposes a registry over JMX, one read-only attribute per counter and
+// gauge. Histograms are exposed as their count, mean, p50 and p99 in
+// milliseconds, e.g. "search_latency_ms.p99".
+public class MetricsMBean implements DynamicMBean {
+
+  private static final String[] HISTOGRAM_STATISTICS = {
+    "count",
+    "mean",
+    "p50",
+    "p99",
+  };
+
+  private final MetricsRegistry registry;
+
+  public MetricsMBean(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public Object getAttribute(String attribute)
+    throws AttributeNotFoundException {
+    Map<String, Object> metrics = registry.getMetrics();
+    Object metric = metrics.get(attribute);
+    if (metric instanceof Counter) return ((Counter) metric).get();
+    if (metric instanceof Supplier<?>) {
+      Object value = ((Supplier<?>) metric).get();
+      return value instanceof Number ? ((Number) value).doubleValue() : null;
+    }
+    int dot = attribute.lastIndexOf('.');
+    if (dot > 0) {
+      metric = metrics.get(attribute.substring(0, dot));
+      if (metric instanceof Histogram) {
+        Histogram histogram = (Histogram) metric;
+        switch (attribute.substring(dot + 1)) {
+          case "count":
+            return (double) histogram.getCount();
+          case "mean":
+            return histogram.getMean();
+          case "p50":
+            return histogram.getQuantile(0.5);
+          case "p99":
+            return histogram.getQuantile(0.99);
+        }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // Removed since it was listed
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute)
+    throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature)
+    throws ReflectionException {
+    throw new ReflectionException(
+      new NoSuchMethodException(actionName),
+      "No operations"
+    );
+  }
+
+  // Rebuilt on every call, as metrics come and go
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    registry
+      .getMetrics()
+      .forEach((name, metric) -> {
+        if (metric instanceof Histogram) {
+          for (String statistic : HISTOGRAM_STATISTICS) {
+            attributes.add(attributeInfo(name + "." + statistic, "Double"));
+          }
+        } else {
+          String type = metric instanceof Counter ? "Long" : "Double";
+          attributes.add(attributeInfo(name, type));
+        }
+      });
+    return new MBeanInfo(
+      getClass().getName(),
+      "IscTorrent node metrics",
+      attributes.toArray(new MBeanAttributeInfo[0]),
+      null,
+      null,
+      null
+    );
+  }
+
+  private static MBeanAttributeInfo attributeInfo(String name, String type) {
+    return new MBeanAttributeInfo(
+      name,
+      "java.lang." + type,
+      name,
+      true,
+      false,
+      false
+    );
+  }
+}
@@ -0,0 +1,155 @@
+package com.isctorrent.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+// The node's metrics, named Prometheus-style with labels in the name, e.g.
+// peer_bytes_in_total{peer="localhost:8081"}. Metrics are created on first
+// use, so instrumented code can look them up on every update.
+public class MetricsRegistry {
+
+  // Full name -> Counter, Histogram or Supplier of a gauge value, by name
+  private final NavigableMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+  public Counter counter(String name, String... labels) {
+    return (Counter) metrics.computeIfAbsent(
+      fullName(name, labels),
+      k -> new Counter()
+    );
+  }
+
+  public Histogram histogram(String name, String... labels) {
+    return (Histogram) metrics.computeIfAbsent(
+      fullName(name, labels),
+      k -> new Histogram()
+    );
+  }
+
+  // Read whenever the metrics are exported
+  public void gauge(
+    String name,
+    Supplier<? extends Number> value,
+    String... labels
+  ) {
+    metrics.put(fullName(name, labels), value);
+  }
+
+  public void remove(String name, String... labels) {
+    metrics.remove(fullName(name, labels));
+  }
+
+  public Map<String, Object> getMetrics() {
+    return Collections.unmodifiableMap(metrics);
+  }
+
+  // Labels are given as name, value pairs
+  public static String fullName(String name, String... labels) {
+    if (labels.length == 0) return name;
+    StringBuilder fullName = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) fullName.append(',');
+      fullName
+        .append(labels[i])
+        .append("=\"")
+        .append(
+          labels[i + 1]
+            .replace("\\", "\\\\")
+            .replace("\"", "\\\"")
+            .replace("\n", "\\n")
+        )
+        .append('"');
+    }
+    return fullName.append('}').toString();
+  }
+
+  // Prometheus text exposition format
+  public void writeText(Writer out) throws IOException {
+    String typedName = null;
+    for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+      String fullName = entry.getKey();
+      int labelsStart = fullName.indexOf('{');
+      String name = labelsStart < 0
+        ? fullName
+        : fullName.substring(0, labelsStart);
+      String labels = labelsStart < 0
+        ? ""
+        : fullName.substring(labelsStart + 1, fullName.length() - 1);
+      Object metric = entry.getValue();
+      if (!name.equals(typedName)) {
+        out.write("# TYPE " + name + " " + typeOf(metric) + "\n");
+        typedName = name;
+      }
+      if (metric instanceof Counter) {
+        writeSample(out, name, labels, ((Counter) metric).get());
+      } else if (metric instanceof Histogram) {
+        writeHistogram(out, name, labels, (Histogram) metric);
+      } else {
+        Object value = ((Supplier<?>) metric).get();
+        if (value instanceof Number) {
+          writeSample(out, name, labels, (Number) value);
+        }
+      }
+    }
+    out.flush();
+  }
+
+  private static String typeOf(Object metric) {
+    if (metric instanceof Counter) return "counter";
+    if (metric instanceof Histogram) return "histogram";
+    return "gauge";
+  }
+
+  private static void writeHistogram(
+    Writer out,
+    String name,
+    String labels,
+    Histogram histogram
+  ) throws IOException {
+    double[] bounds = Histogram.getBounds();
+    long[] counts = histogram.getBucketCounts();
+    String separator = labels.isEmpty() ? "" : ",";
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      String bound = i < bounds.length ? format(bounds[i]) : "+Inf";
+      writeSample(
+        out,
+        name + "_bucket",
+        labels + separator + "le=\"" + bound + "\"",
+        cumulative
+      );
+    }
+    writeSample(out, name + "_sum", labels, histogram.getSum());
+    writeSample(out, name + "_count", labels, cumulative);
+  }
+
+  private static void writeSample(
+    Writer out,
+    String name,
+    String labels,
+    Number value
+  ) throws IOException {
+    out.write(name);
+    if (!labels.isEmpty()) out.write("{" + labels + "}");
+    out.write(" ");
+    out.write(
+      value instanceof Double || value instanceof Float
+        ? format(value.doubleValue())
+        : value.toString()
+    );
+    out.write("\n");
+  }
+
+  private static String format(double value) {
+    if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+}
@@ -0,0 +1,104 @@
+package com.isctorrent.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate at its fastest level, for block payloads on connections that
+// negotiated it. Compression gives up as soon as the output would not be
+// worth it, so incompressible data costs little more than a failed attempt.
+public class BlockCompression {
+
+  private static final int MAX_BLOCK_SIZE = Config.MAX_BLOCK_SIZE;
+  // Reused per thread, a Deflater holds native memory until it is ended
+  private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+    () -> new Deflater(Deflater.BEST_SPEED)
+  );
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(
+    Inflater::new
+  );
+
+  private BlockCompression() {}
+
+  // Returns the compressed data, or null if it would be larger than maxRatio
+  // of the original
+  public static byte[] compress(ByteBuffer data, double maxRatio) {
+    int limit = (int) (data.remaining() * maxRatio);
+    if (limit <= 0) return null;
+    Deflater deflater = DEFLATER.get();
+    deflater.reset();
+    deflater.setInput(data.duplicate());
+    deflater.finish();
+    byte[] output = new byte[limit];
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == output.length) return null;
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    return Arrays.copyOf(output, length);
+  }
+
+  public static byte[] decompress(byte[] data, long originalLength)
+    throws IOException {
+    if (originalLength < 0 || originalLength > MAX_BLOCK_SIZE) {
+      throw new IOException("Invalid block length: " + originalLength);
+    }
+    Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(data);
+    byte[] output = new byte[(int) originalLength];
+    int length = 0;
+    try {
+      while (length < output.length) {
+        int inflated = inflater.inflate(output, length, output.length - length);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+          break;
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed block: " + e.getMessage(), e);
+    }
+    if (length != output.length) {
+      throw new IOException("Compressed block too short: " + length);
+    }
+    return output;
+  }
+
+  // Compresses a few samples spread over the file. Already compressed media
+  // and archives fail this, so their blocks are never tried.
+  public static boolean isCompressible(
+    FileChannel file,
+    int sampleCount,
+    int sampleSize,
+    double maxRatio
+  ) throws IOException {
+    long size = file.size();
+    if (size == 0) return false;
+    ByteBuffer sample = ByteBuffer.allocate((int) Math.min(sampleSize, size));
+    long stride = sampleCount > 1
+      ? (size - sample.capacity()) / (sampleCount - 1)
+      : 0;
+    long originalBytes = 0;
+    long compressedBytes = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      long position = i * stride;
+      sample.clear();
+      while (sample.hasRemaining()) {
+        if (file.read(sample, position + sample.position()) < 0) break;
+      }
+      sample.flip();
+      byte[] compressed = compress(sample, 1.0);
+      originalBytes += sample.remaining();
+      compressedBytes +=
+        compressed != null ? compressed.length : sample.remaining();
+      // Samples overlap for small files, one is enough
+      if (stride == 0) break;
+    }
+    return compressedBytes <= originalBytes * maxRatio;
+  }
+}
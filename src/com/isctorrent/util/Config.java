@@ -3,5 +3,73 @@ package com.isctorrent.util;
 public class Config {
     public static final String APP_NAME = "IscTorrent";
     public static final String VERSION = "1.0";
-    public static final long BLOCK_SIZE = 10240;
+    // Block sizes are chosen per file, doubling from the minimum until the file
+    // has at most TARGET_BLOCK_COUNT blocks
+    public static final int MIN_BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int TARGET_BLOCK_COUNT = 1024;
+    // Outstanding block requests per peer (1 = stop-and-wait)
+    public static final int PIPELINE_WINDOW_SIZE = 8;
+    public static final int PIPELINE_MIN_WINDOW_SIZE = 1;
+    public static final int PIPELINE_MAX_WINDOW_SIZE = 128;
+    // Upper bound on the bytes requested but not yet received from one peer
+    public static final long PIPELINE_MAX_BYTES = 32L * 1024 * 1024;
+    // Upper bound on the bytes held by the WorkFolder block cache
+    public static final long BLOCK_CACHE_BUDGET = 64L * 1024 * 1024;
+    // Serve blocks from memory-mapped files instead of the block cache
+    public static final boolean MMAP_READS = Boolean.getBoolean("isctorrent.mmapReads");
+    // Serve blocks with FileChannel.transferTo when the connection allows it
+    // (-Disctorrent.zeroCopy=false to turn off). Off when blocks are served
+    // from memory-mapped files.
+    public static final boolean ZERO_COPY_SERVING =
+        !MMAP_READS && Boolean.parseBoolean(System.getProperty("isctorrent.zeroCopy", "true"));
+    public static final long MMAP_IDLE_TIMEOUT = 60000; // milliseconds
+    // Selector threads and shared disk/worker threads of the NIO server engine
+    public static final int NIO_IO_THREADS = 2;
+    public static final int NIO_WORKER_THREADS = 8;
+    // Unsent reply bytes of an NIO connection above which its uploads hold their
+    // slot until the peer reads, and above which the peer is dropped
+    public static final long NIO_WRITE_HIGH_WATER = 8L * 1024 * 1024;
+    public static final long NIO_WRITE_LIMIT = 64L * 1024 * 1024;
+    // Run node threads as virtual threads (-Disctorrent.virtualThreads=true, Java 21+)
+    public static final boolean VIRTUAL_THREADS = Boolean.getBoolean("isctorrent.virtualThreads");
+    // Background file hashing threads and their read buffer (a whole number of blocks)
+    public static final int HASHING_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int HASHING_BUFFER_SIZE = MAX_BLOCK_SIZE;
+    // Quiet time before a changed file in the work folder is re-indexed
+    public static final long WATCH_DEBOUNCE = 2000; // milliseconds
+    // Time a search waits for each peer, and for all of them
+    public static final long SEARCH_PEER_TIMEOUT = 5000; // milliseconds
+    public static final long SEARCH_DEADLINE = 10000; // milliseconds
+    // A peer that answers none of its outstanding block requests for this long is dropped
+    public static final long BLOCK_REQUEST_TIMEOUT = 10000; // milliseconds
+    // Blocks left in flight below which idle peers request them too
+    public static final int ENDGAME_THRESHOLD = 16;
+    // Connections a download may stripe its requests over per peer. One more is
+    // kept while it raises the peer's throughput by at least STRIPE_MIN_GAIN.
+    public static final int MAX_CONNECTIONS_PER_PEER = 4;
+    public static final long STRIPE_ADJUST_INTERVAL = 1000; // milliseconds
+    public static final double STRIPE_MIN_GAIN = 0.1;
+    // Offer and accept compressed block answers (-Disctorrent.compression=true).
+    // A file is only compressed if its samples shrink below COMPRESSION_MAX_RATIO,
+    // and a block is sent raw whenever compressing it does not get there.
+    public static final boolean COMPRESSION = Boolean.getBoolean("isctorrent.compression");
+    public static final int COMPRESSION_SAMPLES = 4;
+    public static final int COMPRESSION_SAMPLE_SIZE = 64 * 1024;
+    public static final double COMPRESSION_MAX_RATIO = 0.9;
+    // Initial rate limits in bytes per second, 0 = unlimited (-Disctorrent.uploadLimit=...).
+    // Peer limits apply to each peer separately. Unused rate is kept for up to
+    // RATE_LIMIT_BURST to be spent at once.
+    public static final long UPLOAD_LIMIT = Long.getLong("isctorrent.uploadLimit", 0);
+    public static final long DOWNLOAD_LIMIT = Long.getLong("isctorrent.downloadLimit", 0);
+    public static final long PEER_UPLOAD_LIMIT = Long.getLong("isctorrent.peerUploadLimit", 0);
+    public static final long PEER_DOWNLOAD_LIMIT = Long.getLong("isctorrent.peerDownloadLimit", 0);
+    public static final long RATE_LIMIT_BURST = 1000; // milliseconds
+    // Block requests served at once by the node, and queued per peer before its
+    // connections stop being read
+    public static final int UPLOAD_SLOTS = 8;
+    public static final int UPLOAD_QUEUE_CAPACITY = 64;
+    // Local port serving the metrics as text on /metrics (-Disctorrent.metricsPort=...),
+    // 0 = only exported over JMX
+    public static final int METRICS_PORT = Integer.getInteger("isctorrent.metricsPort", 0);
 }
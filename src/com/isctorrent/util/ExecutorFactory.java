@@ -0,0 +1,90 @@
+package com.isctorrent.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+// Every thread and pool of the node is created here, so they can all run as
+// virtual threads when the runtime provides them (Java 21+)
+public class ExecutorFactory {
+
+  private static final ThreadFactory VIRTUAL_THREAD_FACTORY = lookupVirtualThreadFactory();
+  private static volatile boolean virtualThreads;
+
+  static {
+    setVirtualThreads(Config.VIRTUAL_THREADS);
+  }
+
+  private ExecutorFactory() {}
+
+  // Looked up reflectively so the project still builds on older JDKs
+  private static ThreadFactory lookupVirtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class
+        .forName("java.lang.Thread$Builder")
+        .getMethod("factory")
+        .invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  public static void setVirtualThreads(boolean enabled) {
+    if (enabled && VIRTUAL_THREAD_FACTORY == null) {
+      System.out.println(
+        "[ERROR] Virtual threads not supported, using platform threads."
+      );
+    }
+    virtualThreads = enabled && VIRTUAL_THREAD_FACTORY != null;
+  }
+
+  private static ThreadFactory threadFactory() {
+    return virtualThreads
+      ? VIRTUAL_THREAD_FACTORY
+      : Executors.defaultThreadFactory();
+  }
+
+  public static Thread newThread(Runnable task) {
+    return threadFactory().newThread(task);
+  }
+
+  public static Thread startThread(Runnable task) {
+    Thread thread = newThread(task);
+    thread.start();
+    return thread;
+  }
+
+  public static Thread startDaemonThread(Runnable task) {
+    Thread thread = newThread(task);
+    // Virtual threads are always daemon threads
+    if (!thread.isDaemon()) thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  public static ExecutorService newFixedThreadPool(int nThreads) {
+    return Executors.newFixedThreadPool(nThreads, threadFactory());
+  }
+
+  public static ExecutorService newCachedThreadPool() {
+    return Executors.newCachedThreadPool(threadFactory());
+  }
+
+  public static ExecutorService newFixedDaemonThreadPool(int nThreads) {
+    return Executors.newFixedThreadPool(nThreads, runnable -> {
+      Thread thread = newThread(runnable);
+      if (!thread.isDaemon()) thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static ScheduledExecutorService newSingleThreadScheduledExecutor() {
+    return Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = newThread(runnable);
+      if (!thread.isDaemon()) thread.setDaemon(true);
+      return thread;
+    });
+  }
+}